@@ -207,6 +207,17 @@ public class PipeComponentProvider implements IBlockComponentProvider {
                                 helper.text(Component.literal("" + items).withStyle(MITooltips.NUMBER_TEXT))
                                         .align(IElement.Align.CENTER)));
             }
+
+            if (accessor.showDetails() && tag.contains("telemetry")) {
+                CompoundTag telemetry = tag.getCompound("telemetry");
+
+                // Tick cost
+                tooltip.add(MIText.NetworkTickCost.text(
+                        IDisplayHelper.get().humanReadableNumber(telemetry.getLong("tickNanos") / 1000.0, "", false),
+                        telemetry.getInt("endpoints"),
+                        telemetry.getInt("idlePercent"),
+                        telemetry.getInt("sleepingPercent")).withStyle(ChatFormatting.GRAY));
+            }
         }
     }
 
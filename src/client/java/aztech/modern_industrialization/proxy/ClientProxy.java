@@ -91,6 +91,11 @@ public class ClientProxy extends CommonProxy {
         return Screen.hasShiftDown();
     }
 
+    @Override
+    public void markSectionDirty(int sectionX, int sectionY, int sectionZ) {
+        Minecraft.getInstance().levelRenderer.setSectionDirty(sectionX, sectionY, sectionZ);
+    }
+
     @Override
     public void withStandardItemRenderer(Consumer<?> stupidClientProperties) {
         ((Consumer<IClientItemExtensions>) stupidClientProperties).accept(new IClientItemExtensions() {
@@ -43,6 +43,7 @@ import aztech.modern_industrialization.machines.init.MultiblockMachines;
 import aztech.modern_industrialization.machines.init.SingleBlockCraftingMachines;
 import aztech.modern_industrialization.machines.init.SingleBlockSpecialMachines;
 import aztech.modern_industrialization.machines.multiblocks.world.ChunkEventListeners;
+import aztech.modern_industrialization.machines.recipe.MachineRecipeType;
 import aztech.modern_industrialization.materials.MIMaterials;
 import aztech.modern_industrialization.misc.guidebook.GuidebookEvents;
 import aztech.modern_industrialization.misc.runtime_datagen.RuntimeDataGen;
@@ -82,11 +83,13 @@ import net.neoforged.neoforge.common.NeoForge;
 import net.neoforged.neoforge.data.event.GatherDataEvent;
 import net.neoforged.neoforge.event.AddPackFindersEvent;
 import net.neoforged.neoforge.event.AnvilUpdateEvent;
+import net.neoforged.neoforge.event.OnDatapackSyncEvent;
 import net.neoforged.neoforge.event.RegisterGameTestsEvent;
 import net.neoforged.neoforge.event.entity.EntityAttributeModificationEvent;
 import net.neoforged.neoforge.event.entity.living.LivingIncomingDamageEvent;
 import net.neoforged.neoforge.event.entity.player.PlayerEvent;
 import net.neoforged.neoforge.event.entity.player.PlayerInteractEvent;
+import net.neoforged.neoforge.event.server.ServerStartedEvent;
 import net.neoforged.neoforge.event.village.VillagerTradesEvent;
 import net.neoforged.neoforge.network.event.RegisterPayloadHandlersEvent;
 import net.neoforged.neoforge.registries.datamaps.RegisterDataMapTypesEvent;
@@ -137,6 +140,13 @@ public class MI {
             PlayerStatisticsData.get(server).get(player).onPlayerJoin(player);
         });
         NeoForge.EVENT_BUS.addListener(VillagerTradesEvent.class, MIVillager::init);
+        NeoForge.EVENT_BUS.addListener(ServerStartedEvent.class, event -> MachineRecipeType.rebuildRecipeIndexes(event.getServer(), false));
+        NeoForge.EVENT_BUS.addListener(OnDatapackSyncEvent.class, event -> {
+            // A null player means that the datapacks were reloaded, otherwise a player is joining.
+            if (event.getPlayer() == null) {
+                MachineRecipeType.rebuildRecipeIndexes(event.getPlayerList().getServer(), true);
+            }
+        });
 
         NeoForge.EVENT_BUS.addListener(PlayerInteractEvent.RightClickBlock.class, event -> {
             if (event.getUseBlock().isFalse()) {
@@ -248,9 +258,7 @@ public class MI {
             }
         });
 
-        modBus.addListener(RegisterGameTestsEvent.class, event -> {
-            event.register(MIGameTests.class);
-        });
+        modBus.addListener(RegisterGameTestsEvent.class, MIGameTests::register);
 
         LOGGER.info("Modern Industrialization setup done!");
     }
@@ -88,6 +88,12 @@ public class MIConfig implements ConfigData {
     public int armorHudYPosition = 4;
     @EnglishTranslation(value = "Base amount of items transferred by item pipes every 3 seconds.")
     public int baseItemPipeTransfer = 16;
+    @EnglishTranslation(value = "Split the transfers of item networks with many extracting connections across several ticks")
+    public boolean splitLargeItemNetworkTransfers = false;
+    @EnglishTranslation(value = "Move energy directly between cable networks connected by transformers (experimental)")
+    public boolean crossNetworkEnergyFlow = false;
+    @EnglishTranslation(value = "Collect per-network tick statistics of pipe networks, shown by /mi pipes stats and Jade")
+    public boolean collectPipeNetworkStats = false;
 
     @ConfigEntry.Gui.Excluded
     private transient volatile static MIConfig instance = null;
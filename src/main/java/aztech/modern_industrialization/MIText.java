@@ -171,6 +171,7 @@ public enum MIText {
     NetworkFluidHelpClear("Shift-click to clear the network of its fluid."),
     NetworkFluidHelpSet("Click with a container to set the fluid for the network."),
     NetworkMovedItems("Network Moved Items"),
+    NetworkTickCost("Tick Cost: %s µs, %s endpoints, idle %s%%, sleeping %s%%"),
     NetworkTier("Network Tier"),
     NetworkTransfer("Network Transfer"),
     Neutron("%d Neutron"),
@@ -39,6 +39,12 @@ public class TankBlockEntity extends AbstractTankBlockEntity {
         super(bet, pos, state);
     }
 
+    @Override
+    public void toggleLocked() {
+        super.toggleLocked();
+        fluidHandler.invalidateClaim();
+    }
+
     public boolean onPlayerUse(Player player) {
         return FluidUtil.interactWithFluidHandler(player, InteractionHand.MAIN_HAND, new SlotFluidHandler(this));
     }
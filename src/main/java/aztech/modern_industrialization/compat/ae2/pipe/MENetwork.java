@@ -32,7 +32,6 @@ import aztech.modern_industrialization.pipes.api.PipeNetworkData;
 import aztech.modern_industrialization.pipes.api.PipeNetworkNode;
 import com.google.common.collect.Sets;
 import java.util.HashSet;
-import net.minecraft.core.BlockPos;
 import net.minecraft.core.Direction;
 import net.minecraft.server.level.ServerLevel;
 import org.jetbrains.annotations.Nullable;
@@ -48,7 +47,7 @@ public class MENetwork extends PipeNetwork {
     }
 
     @Override
-    public void setNode(BlockPos pos, @Nullable PipeNetworkNode maybeNode) {
+    protected void onSetNode(@Nullable PipeNetworkNode maybeNode) {
         if (maybeNode instanceof MENetworkNode node) {
             var aeManagedNode = node.mainNode;
             if (aeManagedNode != null && aeManagedNode.isReady()) {
@@ -68,8 +67,6 @@ public class MENetwork extends PipeNetwork {
                 }
             }
         }
-
-        super.setNode(pos, maybeNode);
     }
 
     @Override
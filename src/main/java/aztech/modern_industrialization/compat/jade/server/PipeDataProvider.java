@@ -70,6 +70,17 @@ public class PipeDataProvider implements IServerDataProvider<BlockAccessor> {
                 pipeData.putInt("pulse", info.pulse());
             }
 
+            var telemetry = node.getNetworkTelemetry();
+            if (telemetry != null) {
+                int ticks = Math.max(1, telemetry.size());
+                CompoundTag telemetryData = new CompoundTag();
+                telemetryData.putLong("tickNanos", telemetry.getAverageTickNanos());
+                telemetryData.putInt("endpoints", telemetry.getLastEndpointCount());
+                telemetryData.putInt("idlePercent", 100 * telemetry.getIdleTicks() / ticks);
+                telemetryData.putInt("sleepingPercent", 100 * telemetry.getSleepingTicks() / ticks);
+                pipeData.put("telemetry", telemetryData);
+            }
+
             data.put(node.getType().getIdentifier().toString(), pipeData);
         }
     }
@@ -34,13 +34,22 @@ import aztech.modern_industrialization.MIConfig;
 import aztech.modern_industrialization.machines.MachineBlockEntity;
 import aztech.modern_industrialization.machines.multiblocks.MultiblockMachineBlockEntity;
 import aztech.modern_industrialization.pipes.MIPipes;
+import aztech.modern_industrialization.pipes.api.PipeNetwork;
 import aztech.modern_industrialization.pipes.api.PipeNetworkType;
 import aztech.modern_industrialization.pipes.impl.PipeNetworks;
+import aztech.modern_industrialization.pipes.item.ItemNetwork;
 import aztech.modern_industrialization.stats.PlayerStatisticsData;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
 import com.mojang.brigadier.Command;
 import com.mojang.brigadier.exceptions.CommandSyntaxException;
 import com.mojang.brigadier.exceptions.SimpleCommandExceptionType;
 import com.mojang.brigadier.suggestion.SuggestionProvider;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
 import net.minecraft.commands.CommandSourceStack;
 import net.minecraft.commands.SharedSuggestionProvider;
 import net.minecraft.core.BlockPos;
@@ -67,12 +76,37 @@ public class DebugCommands {
             event.getDispatcher().register(literal("mi")
                     .requires(source -> source.hasPermission(4))
                     .then(literal("pipes")
+                            .then(literal("item_schedule")
+                                    .executes(ctx -> {
+                                        return itemSchedule(ctx.getSource());
+                                    })
+                            )
+                            .then(literal("stats")
+                                    .executes(ctx -> {
+                                        return pipeStats(ctx.getSource());
+                                    })
+                                    .then(literal("dump")
+                                            .executes(ctx -> {
+                                                return dumpPipeStats(ctx.getSource());
+                                            })
+                                    )
+                            )
+                            .then(literal("sleep_stats")
+                                    .executes(ctx -> {
+                                        return sleepStats(ctx.getSource());
+                                    })
+                            )
                             .then(argument("pos", blockPos())
                                     .then(literal("clear")
                                             .executes(ctx -> {
                                                 return clearPipes(ctx.getSource(), getLoadedBlockPos(ctx, "pos"));
                                             })
                                     )
+                                    .then(literal("info")
+                                            .executes(ctx -> {
+                                                return pipeInfo(ctx.getSource(), getLoadedBlockPos(ctx, "pos"));
+                                            })
+                                    )
                                     .then(literal("add_ghost")
                                             .then(argument("pipe_type", id()).suggests(PIPE_TYPES_SUGGESTION_PROVIDER)
                                                     .executes(ctx -> {
@@ -124,6 +158,175 @@ public class DebugCommands {
         return Command.SINGLE_SUCCESS;
     }
 
+    private static int pipeInfo(CommandSourceStack src, BlockPos pos) {
+        var networks = PipeNetworks.get(src.getLevel());
+        for (var type : PipeNetworkType.getTypes().values()) {
+            var manager = networks.getOptionalManager(type);
+            var network = manager == null ? null : manager.getNetwork(pos);
+            if (network == null) {
+                continue;
+            }
+
+            src.sendSuccess(() -> Component.literal("Network of type %s at position %s: %d nodes.".formatted(
+                    type.getIdentifier(), pos, network.getNodeCount())), false);
+            if (network instanceof ItemNetwork itemNetwork) {
+                src.sendSuccess(() -> Component.literal("Routing table rebuilt %d times over %d transfer cycles.".formatted(
+                        itemNetwork.getRoutingTableVersion(), itemNetwork.getTransferCycles())), false);
+            }
+        }
+
+        return Command.SINGLE_SUCCESS;
+    }
+
+    private static int itemSchedule(CommandSourceStack src) {
+        int[] load = new int[ItemNetwork.TICK_RATE];
+        int networkCount = 0;
+        var networks = PipeNetworks.get(src.getLevel());
+        for (var type : PipeNetworkType.getTypes().values()) {
+            var manager = networks.getOptionalManager(type);
+            if (manager == null) {
+                continue;
+            }
+            for (var network : manager.getNetworks()) {
+                if (network instanceof ItemNetwork itemNetwork) {
+                    itemNetwork.addScheduleLoad(load);
+                    networkCount++;
+                }
+            }
+        }
+
+        StringBuilder slots = new StringBuilder();
+        int maxLoad = 0;
+        for (int slot = 0; slot < load.length; ++slot) {
+            slots.append(slot == 0 ? "" : " ").append(load[slot]);
+            maxLoad = Math.max(maxLoad, load[slot]);
+        }
+        int finalNetworkCount = networkCount, finalMaxLoad = maxLoad;
+        src.sendSuccess(() -> Component.literal("%d item networks, at most %d extractions per tick. Extractions per slot (game time %% %d): %s"
+                .formatted(finalNetworkCount, finalMaxLoad, ItemNetwork.TICK_RATE, slots)), false);
+
+        return Command.SINGLE_SUCCESS;
+    }
+
+    private static int pipeStats(CommandSourceStack src) {
+        if (!checkPipeStatsEnabled(src)) {
+            return 0;
+        }
+        var networks = PipeNetworks.get(src.getLevel());
+        for (var type : PipeNetworkType.getTypes().values()) {
+            var manager = networks.getOptionalManager(type);
+            if (manager == null) {
+                continue;
+            }
+            // Networks created since the last tick have no statistics yet
+            var measured = manager.getNetworks().stream().filter(network -> network.getTelemetry() != null).toList();
+            if (measured.isEmpty()) {
+                continue;
+            }
+            long nanosPerTick = 0;
+            int ticks = 0, idleTicks = 0, sleepingTicks = 0;
+            for (var network : measured) {
+                var telemetry = network.getTelemetry();
+                nanosPerTick += telemetry.getAverageTickNanos();
+                ticks += telemetry.size();
+                idleTicks += telemetry.getIdleTicks();
+                sleepingTicks += telemetry.getSleepingTicks();
+            }
+            int networkCount = measured.size();
+            long microsPerTick = nanosPerTick / 1000;
+            int idlePercent = 100 * idleTicks / Math.max(1, ticks), sleepingPercent = 100 * sleepingTicks / Math.max(1, ticks);
+            src.sendSuccess(() -> Component.literal("%s: %d networks, %d µs per tick, idle %d%%, sleeping %d%%.".formatted(
+                    type.getIdentifier(), networkCount, microsPerTick, idlePercent, sleepingPercent)), false);
+
+            // Most expensive networks
+            var costliest = measured.stream()
+                    .sorted(Comparator.comparingLong((PipeNetwork network) -> network.getTelemetry().getAverageTickNanos()).reversed())
+                    .limit(3)
+                    .toList();
+            for (var network : costliest) {
+                var telemetry = network.getTelemetry();
+                src.sendSuccess(() -> Component.literal(" - Network %d: %d nodes, %d endpoints, %d µs per tick (max %d), %d moved per tick."
+                        .formatted(network.getId(), telemetry.getLastNodeCount(), telemetry.getLastEndpointCount(),
+                                telemetry.getAverageTickNanos() / 1000, telemetry.getMaxTickNanos() / 1000, telemetry.getAverageMoved())),
+                        false);
+            }
+        }
+
+        return Command.SINGLE_SUCCESS;
+    }
+
+    private static boolean checkPipeStatsEnabled(CommandSourceStack src) {
+        if (!MIConfig.getConfig().collectPipeNetworkStats) {
+            src.sendFailure(Component.literal("Pipe network statistics are not collected. Enable collectPipeNetworkStats in the config first."));
+            return false;
+        }
+        return true;
+    }
+
+    private static int dumpPipeStats(CommandSourceStack src) {
+        if (!checkPipeStatsEnabled(src)) {
+            return 0;
+        }
+        JsonObject json = new JsonObject();
+        json.addProperty("gameTime", src.getLevel().getGameTime());
+        json.addProperty("dimension", src.getLevel().dimension().location().toString());
+        var networks = PipeNetworks.get(src.getLevel());
+        for (var type : PipeNetworkType.getTypes().values()) {
+            var manager = networks.getOptionalManager(type);
+            if (manager == null) {
+                continue;
+            }
+            JsonArray typeNetworks = new JsonArray();
+            for (var network : manager.getNetworks()) {
+                var telemetry = network.getTelemetry();
+                if (telemetry == null) {
+                    continue;
+                }
+                JsonObject networkJson = telemetry.toJson();
+                networkJson.addProperty("id", network.getId());
+                networkJson.addProperty("sleeping", network.isSleeping());
+                typeNetworks.add(networkJson);
+            }
+            json.add(type.getIdentifier().toString(), typeNetworks);
+        }
+
+        Path path = src.getServer().getServerDirectory().resolve("debug")
+                .resolve("mi-pipe-stats-%d.json".formatted(src.getLevel().getGameTime()));
+        try {
+            Files.createDirectories(path.getParent());
+            Files.writeString(path, new GsonBuilder().setPrettyPrinting().create().toJson(json));
+        } catch (IOException exception) {
+            src.sendFailure(Component.literal("Failed to write pipe stats to %s: %s".formatted(path, exception.getMessage())));
+            return 0;
+        }
+        src.sendSuccess(() -> Component.literal("Wrote pipe stats to %s.".formatted(path)), false);
+
+        return Command.SINGLE_SUCCESS;
+    }
+
+    private static int sleepStats(CommandSourceStack src) {
+        var networks = PipeNetworks.get(src.getLevel());
+        for (var type : PipeNetworkType.getTypes().values()) {
+            var manager = networks.getOptionalManager(type);
+            if (manager == null) {
+                continue;
+            }
+            int sleeping = 0, awake = 0;
+            for (var network : manager.getNetworks()) {
+                if (network.isSleeping()) {
+                    sleeping++;
+                } else {
+                    awake++;
+                }
+            }
+            int finalSleeping = sleeping, finalAwake = awake;
+            src.sendSuccess(() -> Component.literal("%s: %d sleeping networks, %d awake networks.".formatted(
+                    type.getIdentifier(), finalSleeping, finalAwake)), false);
+        }
+
+        return Command.SINGLE_SUCCESS;
+    }
+
     private static int addGhostPipe(CommandSourceStack src, BlockPos pos, ResourceLocation pipeType) throws CommandSyntaxException {
         PipeNetworkType type = PipeNetworkType.get(pipeType);
         if (type == null) {
@@ -62,6 +62,14 @@ public class MIItemStorage extends MIStorage<Item, ItemVariant, ConfigurableItem
     }
 
     public class ItemHandler implements IItemHandler {
+        public MIItemStorage getStorage() {
+            return MIItemStorage.this;
+        }
+
+        public ConfigurableItemStack getSlot(int slot) {
+            return stacks.get(slot);
+        }
+
         @Override
         public int getSlots() {
             return stacks.size();
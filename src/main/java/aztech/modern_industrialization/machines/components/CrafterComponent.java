@@ -43,10 +43,11 @@ import aztech.modern_industrialization.thirdparty.fabrictransfer.api.fluid.Fluid
 import aztech.modern_industrialization.thirdparty.fabrictransfer.api.item.ItemVariant;
 import aztech.modern_industrialization.util.Simulation;
 import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.objects.ReferenceOpenHashSet;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ThreadLocalRandom;
 import net.minecraft.core.HolderLookup;
@@ -62,6 +63,7 @@ import org.jetbrains.annotations.Nullable;
 
 public class CrafterComponent implements IComponent.ServerOnly, CrafterAccess {
     private final MachineProcessCondition.Context conditionContext;
+    private final RecipeSimulation simulation = new RecipeSimulation();
 
     public CrafterComponent(MachineBlockEntity blockEntity, Inventory inventory, Behavior behavior) {
         this.inventory = inventory;
@@ -78,7 +80,15 @@ public class CrafterComponent implements IComponent.ServerOnly, CrafterAccess {
 
         List<ConfigurableFluidStack> getFluidOutputs();
 
-        int hash();
+        /**
+         * Changes every time one of the input stacks changes.
+         */
+        int inputHash();
+
+        /**
+         * Changes every time one of the output stacks changes.
+         */
+        int outputHash();
     }
 
     public interface Behavior {
@@ -140,8 +150,48 @@ public class CrafterComponent implements IComponent.ServerOnly, CrafterAccess {
     private long previousBaseEu = -1;
     private long previousMaxEu = -1;
 
-    private int lastInvHash = 0;
-    private int lastForcedTick = 0;
+    /**
+     * Why the last search for a recipe failed. The crafter doesn't search again until something changed that could lift
+     * that constraint. Running out of energy is not recorded: the energy is checked before searching, every tick.
+     */
+    private enum IdleReason {
+        /**
+         * Search every tick.
+         */
+        NONE,
+        /**
+         * No recipe has all of its inputs: wait for the inputs to change.
+         */
+        INPUTS,
+        /**
+         * A recipe has all of its inputs but not enough output space: wait for the inputs or the outputs to change.
+         */
+        OUTPUT_SPACE,
+        /**
+         * A recipe could start but its conditions don't match. The conditions can't be observed, so search again
+         * periodically.
+         */
+        CONDITIONS,
+    }
+
+    private static final int CONDITIONS_RECHECK_TICKS = 100;
+
+    private IdleReason idleReason = IdleReason.NONE;
+    private int idleInputHash;
+    private int idleOutputHash;
+    private long idleMaxRecipeEu;
+    private int idleRecipeGeneration;
+    private int idleTicks;
+
+    /**
+     * Recipes that were started recently, most recent first. They are tried before the other candidates.
+     */
+    private final List<RecipeHolder<MachineRecipe>> recentRecipes = new ArrayList<>();
+    /**
+     * Recipe generation of {@link #recentRecipes}, they are forgotten when the recipes are reloaded.
+     */
+    private int recentRecipesGeneration;
+    private static final int MAX_RECENT_RECIPES = 4;
 
     @Override
     public float getProgress() {
@@ -214,10 +264,6 @@ public class CrafterComponent implements IComponent.ServerOnly, CrafterAccess {
             }
         }
 
-        if (activeRecipe != null) {
-            lastForcedTick = 0;
-        }
-
         // PROCESS RECIPE TICK
         long eu = 0;
         boolean finishedRecipe = false; // whether the recipe finished this tick
@@ -316,11 +362,20 @@ public class CrafterComponent implements IComponent.ServerOnly, CrafterAccess {
     }
 
     private boolean updateActiveRecipe() {
+        if (efficiencyTicks == 0 && !shouldSearchRecipes()) {
+            return false;
+        }
+
         // Only then can we run the iteration over the recipes
+        IdleReason reason = IdleReason.INPUTS;
         for (RecipeHolder<MachineRecipe> recipe : getRecipes()) {
             if (behavior.banRecipe(recipe.value()))
                 continue;
-            if (tryStartRecipe(recipe.value())) {
+            IdleReason failure = tryStartRecipe(recipe.value());
+            if (failure.compareTo(reason) > 0) {
+                reason = failure;
+            }
+            if (failure == IdleReason.NONE) {
                 // Make sure we recalculate the max efficiency ticks if the recipe changes or if
                 // the efficiency has reached 0 (the latter is to recalculate the efficiency for
                 // 0.3.6 worlds without having to break and replace the machines)
@@ -328,37 +383,81 @@ public class CrafterComponent implements IComponent.ServerOnly, CrafterAccess {
                     maxEfficiencyTicks = getRecipeMaxEfficiencyTicks(recipe.value());
                 }
                 activeRecipe = recipe;
+                recentRecipes.remove(recipe);
+                recentRecipes.add(0, recipe);
+                if (recentRecipes.size() > MAX_RECENT_RECIPES) {
+                    recentRecipes.remove(MAX_RECENT_RECIPES);
+                }
                 usedEnergy = 0;
                 recipeEnergy = recipe.value().getTotalEu();
                 recipeMaxEu = getRecipeMaxEu(recipe.value().eu, recipeEnergy, efficiencyTicks);
                 return true;
             }
         }
+        if (efficiencyTicks == 0) {
+            startIdling(reason);
+        }
         return false;
     }
 
+    private void startIdling(IdleReason reason) {
+        idleReason = reason;
+        idleInputHash = inventory.inputHash();
+        idleOutputHash = inventory.outputHash();
+        idleMaxRecipeEu = behavior.getMaxRecipeEu();
+        idleRecipeGeneration = MachineRecipeType.getRecipeGeneration();
+        idleTicks = CONDITIONS_RECHECK_TICKS;
+    }
+
+    /**
+     * Check whether the constraint that stopped the last search might have been lifted, and stop idling if that is the
+     * case. Changes to the recipes or to the maximum recipe EU always end the idle state.
+     */
+    private boolean shouldSearchRecipes() {
+        boolean inputsChanged = inventory.inputHash() != idleInputHash;
+        boolean outputsChanged = inventory.outputHash() != idleOutputHash;
+        boolean wake = switch (idleReason) {
+        case NONE -> true;
+        case INPUTS -> inputsChanged;
+        case OUTPUT_SPACE -> inputsChanged || outputsChanged;
+        case CONDITIONS -> inputsChanged || outputsChanged || --idleTicks <= 0;
+        };
+        wake = wake || behavior.getMaxRecipeEu() != idleMaxRecipeEu || MachineRecipeType.getRecipeGeneration() != idleRecipeGeneration;
+        if (wake) {
+            idleReason = IdleReason.NONE;
+        }
+        return wake;
+    }
+
     private Iterable<RecipeHolder<MachineRecipe>> getRecipes() {
         if (efficiencyTicks > 0) {
             return Collections.singletonList(activeRecipe);
         } else {
-            int currentHash = inventory.hash();
-            if (currentHash == lastInvHash) {
-                if (lastForcedTick == 0) {
-                    lastForcedTick = 100;
-                } else {
-                    --lastForcedTick;
-                    return Collections.emptyList();
+            Set<Item> items = new ReferenceOpenHashSet<>();
+            for (ConfigurableItemStack stack : inventory.getItemInputs()) {
+                if (stack.getAmount() > 0) {
+                    items.add(stack.getResource().getItem());
+                }
+            }
+            Set<Fluid> fluids = new ReferenceOpenHashSet<>();
+            for (ConfigurableFluidStack stack : inventory.getFluidInputs()) {
+                if (stack.getAmount() > 0) {
+                    fluids.add(stack.getResource().getFluid());
                 }
-            } else {
-                lastInvHash = currentHash;
             }
 
-            ServerLevel serverWorld = (ServerLevel) behavior.getCrafterWorld();
-            MachineRecipeType recipeType = behavior.recipeType();
-            List<RecipeHolder<MachineRecipe>> recipes = new ArrayList<>(recipeType.getFluidOnlyRecipes(serverWorld));
-            for (ConfigurableItemStack stack : inventory.getItemInputs()) {
-                if (!stack.isEmpty()) {
-                    recipes.addAll(recipeType.getMatchingRecipes(serverWorld, stack.getResource().getItem()));
+            ServerLevel serverWorld = behavior.getCrafterWorld();
+            List<RecipeHolder<MachineRecipe>> recipes = behavior.recipeType().getCandidateRecipes(serverWorld, items, fluids);
+            // Try the recipes that were started last first
+            if (recentRecipesGeneration != MachineRecipeType.getRecipeGeneration()) {
+                recentRecipes.clear();
+                recentRecipesGeneration = MachineRecipeType.getRecipeGeneration();
+            }
+            for (int i = recentRecipes.size() - 1; i >= 0; --i) {
+                // Holders are equal if their ids are, so move the candidate itself rather than the recent holder.
+                int index = recipes.indexOf(recentRecipes.get(i));
+                if (index >= 0) {
+                    recipes.add(0, recipes.remove(index));
                 }
             }
             return recipes;
@@ -366,20 +465,24 @@ public class CrafterComponent implements IComponent.ServerOnly, CrafterAccess {
     }
 
     /**
-     * Try to start a recipe. Return true if success, false otherwise. If false,
-     * nothing was changed.
+     * Try to start a recipe. Return {@link IdleReason#NONE} if success, or the
+     * first constraint that failed otherwise. If it failed, nothing was changed.
      */
-    private boolean tryStartRecipe(MachineRecipe recipe) {
-        if (takeItemInputs(recipe, true) && takeFluidInputs(recipe, true) && putItemOutputs(recipe, true, false)
-                && putFluidOutputs(recipe, true, false) && recipe.conditionsMatch(conditionContext)) {
-            takeItemInputs(recipe, false);
-            takeFluidInputs(recipe, false);
-            putItemOutputs(recipe, true, true);
-            putFluidOutputs(recipe, true, true);
-            return true;
-        } else {
-            return false;
+    private IdleReason tryStartRecipe(MachineRecipe recipe) {
+        if (!takeItemInputs(recipe, true) || !takeFluidInputs(recipe, true)) {
+            return IdleReason.INPUTS;
         }
+        if (!putItemOutputs(recipe, true, false) || !putFluidOutputs(recipe, true, false)) {
+            return IdleReason.OUTPUT_SPACE;
+        }
+        if (!recipe.conditionsMatch(conditionContext)) {
+            return IdleReason.CONDITIONS;
+        }
+        takeItemInputs(recipe, false);
+        takeFluidInputs(recipe, false);
+        putItemOutputs(recipe, true, true);
+        putFluidOutputs(recipe, true, true);
+        return IdleReason.NONE;
     }
 
     public static double getEfficiencyOverclock(int efficiencyTicks) {
@@ -431,21 +534,23 @@ public class CrafterComponent implements IComponent.ServerOnly, CrafterAccess {
      * guaranteed to be correct after this call
      */
     private boolean takeItemInputs(MachineRecipe recipe, boolean simulate) {
-        List<ConfigurableItemStack> baseList = inventory.getItemInputs();
-        List<ConfigurableItemStack> stacks = simulate ? ConfigurableItemStack.copyList(baseList) : baseList;
+        List<ConfigurableItemStack> stacks = inventory.getItemInputs();
+        if (simulate) {
+            return simulation.canTakeItemInputs(stacks, recipe);
+        }
 
         boolean ok = true;
         for (MachineRecipe.ItemInput input : recipe.itemInputs) {
-            if (!simulate && input.probability() < 1) { // if we are not simulating, there is a chance we don't need to take this output
+            if (input.probability() < 1) { // there is a chance we don't need to take this input
                 if (ThreadLocalRandom.current().nextFloat() >= input.probability()) {
                     continue;
                 }
             }
             int remainingAmount = input.amount();
             for (ConfigurableItemStack stack : stacks) {
-                if (stack.getAmount() > 0 && input.matches(stack.getResource().toStack())) { // TODO: ItemStack creation slow?
+                if (stack.getAmount() > 0 && input.matches(stack.getResource())) {
                     int taken = Math.min((int) stack.getAmount(), remainingAmount);
-                    if (taken > 0 && !simulate) {
+                    if (taken > 0) {
                         behavior.getStatsOrDummy().addUsedItems(stack.getResource().getItem(), taken);
                     }
                     stack.decrement(taken);
@@ -462,21 +567,25 @@ public class CrafterComponent implements IComponent.ServerOnly, CrafterAccess {
     }
 
     protected boolean takeFluidInputs(MachineRecipe recipe, boolean simulate) {
-        List<ConfigurableFluidStack> baseList = inventory.getFluidInputs();
-        List<ConfigurableFluidStack> stacks = simulate ? ConfigurableFluidStack.copyList(baseList) : baseList;
+        List<ConfigurableFluidStack> stacks = inventory.getFluidInputs();
+        if (simulate) {
+            return simulation.canTakeFluidInputs(stacks, recipe);
+        }
 
         boolean ok = true;
-        for (MachineRecipe.FluidInput input : recipe.fluidInputs) {
-            if (!simulate && input.probability() < 1) { // if we are not simulating, there is a chance we don't need to take this output
+        for (int i = 0; i < recipe.fluidInputs.size(); ++i) {
+            MachineRecipe.FluidInput input = recipe.fluidInputs.get(i);
+            if (input.probability() < 1) { // there is a chance we don't need to take this input
                 if (ThreadLocalRandom.current().nextFloat() >= input.probability()) {
                     continue;
                 }
             }
+            FluidVariant inputKey = recipe.getFluidInputVariant(i);
             long remainingAmount = input.amount();
             for (ConfigurableFluidStack stack : stacks) {
-                if (stack.getResource().equals(FluidVariant.of(input.fluid()))) {
+                if (stack.getResource().equals(inputKey)) {
                     long taken = Math.min(remainingAmount, stack.getAmount());
-                    if (taken > 0 && !simulate) {
+                    if (taken > 0) {
                         behavior.getStatsOrDummy().addUsedFluids(stack.getResource().getFluid(), taken);
                     }
                     stack.decrement(taken);
@@ -492,8 +601,14 @@ public class CrafterComponent implements IComponent.ServerOnly, CrafterAccess {
     }
 
     protected boolean putItemOutputs(MachineRecipe recipe, boolean simulate, boolean toggleLock) {
-        List<ConfigurableItemStack> baseList = inventory.getItemOutputs();
-        List<ConfigurableItemStack> stacks = simulate ? ConfigurableItemStack.copyList(baseList) : baseList;
+        List<ConfigurableItemStack> stacks = inventory.getItemOutputs();
+        if (simulate) {
+            boolean ok = simulation.canPutItemOutputs(stacks, recipe);
+            if (toggleLock) {
+                simulation.lockItemOutputs(stacks);
+            }
+            return ok;
+        }
 
         List<Integer> locksToToggle = new ArrayList<>();
         List<Item> lockItems = new ArrayList<>();
@@ -501,8 +616,6 @@ public class CrafterComponent implements IComponent.ServerOnly, CrafterAccess {
         boolean ok = true;
         for (MachineRecipe.ItemOutput output : recipe.itemOutputs) {
             if (output.probability() < 1) {
-                if (simulate)
-                    continue; // don't check output space for probabilistic recipes
                 float randFloat = ThreadLocalRandom.current().nextFloat();
                 if (randFloat > output.probability())
                     continue;
@@ -516,10 +629,10 @@ public class CrafterComponent implements IComponent.ServerOnly, CrafterAccess {
                     stackId++;
                     ItemVariant key = stack.getResource();
                     if (key.equals(output.variant()) || key.isBlank()) {
-                        // If simulating or chanced output, respect the adjusted capacity.
+                        // If chanced output, respect the adjusted capacity.
                         // If putting the output, don't respect the adjusted capacity in case it was
                         // reduced during the processing.
-                        int remainingCapacity = simulate || output.probability() < 1
+                        int remainingCapacity = output.probability() < 1
                                 ? (int) stack.getRemainingCapacityFor(output.variant())
                                 : output.variant().getMaxStackSize() - (int) stack.getAmount();
                         int ins = Math.min(remainingAmount, remainingCapacity);
@@ -540,9 +653,7 @@ public class CrafterComponent implements IComponent.ServerOnly, CrafterAccess {
                         if (ins > 0) {
                             locksToToggle.add(stackId - 1);
                             lockItems.add(output.variant().getItem());
-                            if (!simulate) {
-                                behavior.getStatsOrDummy().addProducedItems(behavior.getCrafterWorld(), output.variant().getItem(), ins);
-                            }
+                            behavior.getStatsOrDummy().addProducedItems(behavior.getCrafterWorld(), output.variant().getItem(), ins);
                         }
                         if (remainingAmount == 0)
                             break;
@@ -555,15 +666,21 @@ public class CrafterComponent implements IComponent.ServerOnly, CrafterAccess {
 
         if (toggleLock) {
             for (int i = 0; i < locksToToggle.size(); i++) {
-                baseList.get(locksToToggle.get(i)).enableMachineLock(lockItems.get(i));
+                stacks.get(locksToToggle.get(i)).enableMachineLock(lockItems.get(i));
             }
         }
         return ok;
     }
 
     protected boolean putFluidOutputs(MachineRecipe recipe, boolean simulate, boolean toggleLock) {
-        List<ConfigurableFluidStack> baseList = inventory.getFluidOutputs();
-        List<ConfigurableFluidStack> stacks = simulate ? ConfigurableFluidStack.copyList(baseList) : baseList;
+        List<ConfigurableFluidStack> stacks = inventory.getFluidOutputs();
+        if (simulate) {
+            boolean ok = simulation.canPutFluidOutputs(stacks, recipe, behavior.getMaxFluidOutputs());
+            if (toggleLock) {
+                simulation.lockFluidOutputs(stacks);
+            }
+            return ok;
+        }
 
         List<Integer> locksToToggle = new ArrayList<>();
         List<Fluid> lockFluids = new ArrayList<>();
@@ -572,18 +689,16 @@ public class CrafterComponent implements IComponent.ServerOnly, CrafterAccess {
         for (int i = 0; i < Math.min(recipe.fluidOutputs.size(), behavior.getMaxFluidOutputs()); ++i) {
             MachineRecipe.FluidOutput output = recipe.fluidOutputs.get(i);
             if (output.probability() < 1) {
-                if (simulate)
-                    continue; // don't check output space for probabilistic recipes
                 float randFloat = ThreadLocalRandom.current().nextFloat();
                 if (randFloat > output.probability())
                     continue;
             }
+            FluidVariant outputKey = recipe.getFluidOutputVariant(i);
             // First, try to find a slot that contains the fluid. If we couldn't find one,
             // we insert in any stack
             outer: for (int tries = 0; tries < 2; ++tries) {
                 for (int j = 0; j < stacks.size(); j++) {
                     ConfigurableFluidStack stack = stacks.get(j);
-                    FluidVariant outputKey = FluidVariant.of(output.fluid());
                     if (stack.isResourceAllowedByLock(outputKey)
                             && ((tries == 1 && stack.isResourceBlank()) || stack.getResource().equals(outputKey))) {
                         long inserted = Math.min(output.amount(), stack.getRemainingSpace());
@@ -592,9 +707,7 @@ public class CrafterComponent implements IComponent.ServerOnly, CrafterAccess {
                             stack.increment(inserted);
                             locksToToggle.add(j);
                             lockFluids.add(output.fluid());
-                            if (!simulate) {
-                                behavior.getStatsOrDummy().addProducedFluids(output.fluid(), inserted);
-                            }
+                            behavior.getStatsOrDummy().addProducedFluids(output.fluid(), inserted);
                         }
                         if (inserted < output.amount()) {
                             ok = false;
@@ -610,7 +723,7 @@ public class CrafterComponent implements IComponent.ServerOnly, CrafterAccess {
 
         if (toggleLock) {
             for (int i = 0; i < locksToToggle.size(); i++) {
-                baseList.get(locksToToggle.get(i)).enableMachineLock(lockFluids.get(i));
+                stacks.get(locksToToggle.get(i)).enableMachineLock(lockFluids.get(i));
             }
         }
         return ok;
@@ -629,22 +742,20 @@ public class CrafterComponent implements IComponent.ServerOnly, CrafterAccess {
 
     public void lockRecipe(ResourceLocation recipeId, net.minecraft.world.entity.player.Inventory inventory) {
         // Find MachineRecipe
-        Optional<RecipeHolder<MachineRecipe>> optionalMachineRecipe = behavior.recipeType().getRecipesWithCache(behavior.getCrafterWorld()).stream()
-                .filter(recipe -> recipe.id().equals(recipeId)).findFirst();
-        if (optionalMachineRecipe.isEmpty())
+        var recipe = behavior.recipeType().getRecipe(behavior.getCrafterWorld(), recipeId);
+        if (recipe == null)
             return;
-        var recipe = optionalMachineRecipe.get();
         // ITEM INPUTS
         outer: for (MachineRecipe.ItemInput input : recipe.value().itemInputs) {
             for (ConfigurableItemStack stack : this.inventory.getItemInputs()) {
-                if (stack.getLockedInstance() != null && input.matches(new ItemStack(stack.getLockedInstance())))
+                if (stack.getLockedInstance() != null && input.matches(stack.getLockedInstance()))
                     continue outer;
             }
             Item targetItem = null;
             // Find the first match in the player inventory (useful for logs for example)
             for (int i = 0; i < inventory.getContainerSize(); i++) {
                 ItemStack playerStack = inventory.getItem(i);
-                if (!playerStack.isEmpty() && input.matches(new ItemStack(playerStack.getItem()))) {
+                if (!playerStack.isEmpty() && input.matches(playerStack.getItem())) {
                     targetItem = playerStack.getItem();
                     break;
                 }
@@ -48,7 +48,7 @@ public class FluidStorageComponent implements IComponent, FluidAccess {
             return capacity;
         }
     };
-    private final IFluidHandler fluidHandler = new FluidNetworkExtensionTank(singleStorageVariant);
+    private final FluidNetworkExtensionTank fluidHandler = new FluidNetworkExtensionTank(singleStorageVariant);
 
     public SingleVariantStorage<FluidVariant> getFluidStorage() {
         return singleStorageVariant;
@@ -67,6 +67,7 @@ public class FluidStorageComponent implements IComponent, FluidAccess {
         Preconditions.checkArgument(capacity >= 0, "Fluid Capacity must be > 0");
         this.capacity = capacity;
         singleStorageVariant.amount = Math.min(singleStorageVariant.amount, capacity);
+        fluidHandler.invalidateClaim();
     }
 
     public FluidVariant getFluid() {
@@ -42,11 +42,23 @@ public class MachineInventoryComponent implements CrafterComponent.Inventory, IC
 
     public final MIInventory inventory;
 
-    private int invHash = 0;
-    private final ChangeListener listener = new ChangeListener() {
+    private int inputHash = 0;
+    private int outputHash = 0;
+    private final ChangeListener inputListener = new ChangeListener() {
         @Override
         protected void onChange() {
-            invHash++;
+            inputHash++;
+        }
+
+        @Override
+        protected boolean isValid(Object token) {
+            return true;
+        }
+    };
+    private final ChangeListener outputListener = new ChangeListener() {
+        @Override
+        protected void onChange() {
+            outputHash++;
         }
 
         @Override
@@ -71,7 +83,14 @@ public class MachineInventoryComponent implements CrafterComponent.Inventory, IC
         fluidStacks.addAll(fluidOutputs);
 
         this.inventory = new MIInventory(itemStacks, fluidStacks, itemPositions, fluidPositions);
-        this.inventory.addListener(listener, null);
+        addListeners();
+    }
+
+    private void addListeners() {
+        inputListener.listenAll(getItemInputs(), null);
+        inputListener.listenAll(getFluidInputs(), null);
+        outputListener.listenAll(getItemOutputs(), null);
+        outputListener.listenAll(getFluidOutputs(), null);
     }
 
     @Override
@@ -95,8 +114,13 @@ public class MachineInventoryComponent implements CrafterComponent.Inventory, IC
     }
 
     @Override
-    public int hash() {
-        return invHash;
+    public int inputHash() {
+        return inputHash;
+    }
+
+    @Override
+    public int outputHash() {
+        return outputHash;
     }
 
     @Override
@@ -107,6 +131,9 @@ public class MachineInventoryComponent implements CrafterComponent.Inventory, IC
     @Override
     public void readNbt(CompoundTag tag, HolderLookup.Provider registries, boolean isUpgradingMachine) {
         this.inventory.readNbt(tag, registries, isUpgradingMachine);
-        this.inventory.addListener(listener, null);
+        addListeners();
+        // The stacks were replaced
+        inputHash++;
+        outputHash++;
     }
 }
@@ -42,11 +42,23 @@ public class MultiblockInventoryComponent implements CrafterComponent.Inventory,
     private final List<ConfigurableFluidStack> fluidInputs = new ArrayList<>();
     private final List<ConfigurableFluidStack> fluidOutputs = new ArrayList<>();
 
-    private int invHash = 0;
-    private final ChangeListener listener = new ChangeListener() {
+    private int inputHash = 0;
+    private int outputHash = 0;
+    private final ChangeListener inputListener = new ChangeListener() {
         @Override
         protected void onChange() {
-            invHash++;
+            inputHash++;
+        }
+
+        @Override
+        protected boolean isValid(Object token) {
+            return true;
+        }
+    };
+    private final ChangeListener outputListener = new ChangeListener() {
+        @Override
+        protected void onChange() {
+            outputHash++;
         }
 
         @Override
@@ -60,16 +72,18 @@ public class MultiblockInventoryComponent implements CrafterComponent.Inventory,
         List<HatchBlockEntity> sortedHatches = new ArrayList<>(shapeMatcher.getMatchedHatches());
         sortedHatches.sort(Comparator.comparing(h -> h.getBlockPos().getY()));
         // Accumulate the slots
-        rebuildList(sortedHatches, itemInputs, HatchBlockEntity::appendItemInputs);
-        rebuildList(sortedHatches, itemOutputs, HatchBlockEntity::appendItemOutputs);
-        rebuildList(sortedHatches, fluidInputs, HatchBlockEntity::appendFluidInputs);
-        rebuildList(sortedHatches, fluidOutputs, HatchBlockEntity::appendFluidOutputs);
-        // Update hash in case the slots have changed
-        invHash++;
+        rebuildList(sortedHatches, itemInputs, HatchBlockEntity::appendItemInputs, inputListener);
+        rebuildList(sortedHatches, itemOutputs, HatchBlockEntity::appendItemOutputs, outputListener);
+        rebuildList(sortedHatches, fluidInputs, HatchBlockEntity::appendFluidInputs, inputListener);
+        rebuildList(sortedHatches, fluidOutputs, HatchBlockEntity::appendFluidOutputs, outputListener);
+        // Update hashes in case the slots have changed
+        inputHash++;
+        outputHash++;
     }
 
     private <T, Stack extends AbstractConfigurableStack<T, ? extends TransferVariant<T>>> void rebuildList(
-            List<HatchBlockEntity> sortedHatches, List<Stack> stacks, BiConsumer<HatchBlockEntity, List<Stack>> appender) {
+            List<HatchBlockEntity> sortedHatches, List<Stack> stacks, BiConsumer<HatchBlockEntity, List<Stack>> appender,
+            ChangeListener listener) {
         for (var stack : stacks) {
             stack.removeListener(listener);
         }
@@ -104,7 +118,12 @@ public class MultiblockInventoryComponent implements CrafterComponent.Inventory,
     }
 
     @Override
-    public int hash() {
-        return invHash;
+    public int inputHash() {
+        return inputHash;
+    }
+
+    @Override
+    public int outputHash() {
+        return outputHash;
     }
 }
@@ -0,0 +1,253 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Azercoco & Technici4n
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package aztech.modern_industrialization.machines.components;
+
+import aztech.modern_industrialization.inventory.ConfigurableFluidStack;
+import aztech.modern_industrialization.inventory.ConfigurableItemStack;
+import aztech.modern_industrialization.machines.recipe.MachineRecipe;
+import aztech.modern_industrialization.thirdparty.fabrictransfer.api.fluid.FluidVariant;
+import aztech.modern_industrialization.thirdparty.fabrictransfer.api.item.ItemVariant;
+import java.util.Arrays;
+import java.util.List;
+import net.minecraft.world.item.Item;
+import net.minecraft.world.level.material.Fluid;
+
+/**
+ * Checks whether a recipe can be started without copying the machine inventory.
+ * The simulated amounts and keys are kept in scratch arrays that are reused between calls,
+ * and the output locks that would be toggled are recorded so that they can be applied afterwards.
+ * Results must match what the {@link CrafterComponent} would do on a copy of its stacks.
+ */
+public final class RecipeSimulation {
+    private long[] amounts = new long[0];
+    private ItemVariant[] itemKeys = new ItemVariant[0];
+    private FluidVariant[] fluidKeys = new FluidVariant[0];
+
+    private int[] itemLockSlots = new int[0];
+    private Item[] itemLocks = new Item[0];
+    private int itemLockCount = 0;
+    private int[] fluidLockSlots = new int[0];
+    private Fluid[] fluidLocks = new Fluid[0];
+    private int fluidLockCount = 0;
+
+    private void loadItems(List<ConfigurableItemStack> stacks) {
+        int size = stacks.size();
+        if (amounts.length < size) {
+            amounts = new long[size];
+        }
+        if (itemKeys.length < size) {
+            itemKeys = new ItemVariant[size];
+        }
+        for (int i = 0; i < size; ++i) {
+            ConfigurableItemStack stack = stacks.get(i);
+            amounts[i] = stack.getAmount();
+            itemKeys[i] = stack.getResource();
+        }
+    }
+
+    private void loadFluids(List<ConfigurableFluidStack> stacks) {
+        int size = stacks.size();
+        if (amounts.length < size) {
+            amounts = new long[size];
+        }
+        if (fluidKeys.length < size) {
+            fluidKeys = new FluidVariant[size];
+        }
+        for (int i = 0; i < size; ++i) {
+            ConfigurableFluidStack stack = stacks.get(i);
+            amounts[i] = stack.getAmount();
+            fluidKeys[i] = stack.getResource();
+        }
+    }
+
+    public boolean canTakeItemInputs(List<ConfigurableItemStack> stacks, MachineRecipe recipe) {
+        loadItems(stacks);
+        for (MachineRecipe.ItemInput input : recipe.itemInputs) {
+            long remainingAmount = input.amount();
+            for (int i = 0; i < stacks.size() && remainingAmount > 0; ++i) {
+                if (amounts[i] > 0 && input.matches(itemKeys[i])) {
+                    long taken = Math.min(amounts[i], remainingAmount);
+                    amounts[i] -= taken;
+                    remainingAmount -= taken;
+                }
+            }
+            if (remainingAmount > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean canTakeFluidInputs(List<ConfigurableFluidStack> stacks, MachineRecipe recipe) {
+        loadFluids(stacks);
+        for (int i = 0; i < recipe.fluidInputs.size(); ++i) {
+            FluidVariant inputKey = recipe.getFluidInputVariant(i);
+            long remainingAmount = recipe.fluidInputs.get(i).amount();
+            for (int j = 0; j < stacks.size() && remainingAmount > 0; ++j) {
+                if (fluidKeys[j].equals(inputKey)) {
+                    long taken = Math.min(amounts[j], remainingAmount);
+                    amounts[j] -= taken;
+                    remainingAmount -= taken;
+                }
+            }
+            if (remainingAmount > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Probabilistic outputs are not checked. The locks of the slots that would receive the outputs are recorded,
+     * even if the whole recipe does not fit.
+     */
+    public boolean canPutItemOutputs(List<ConfigurableItemStack> stacks, MachineRecipe recipe) {
+        loadItems(stacks);
+        itemLockCount = 0;
+
+        boolean ok = true;
+        for (MachineRecipe.ItemOutput output : recipe.itemOutputs) {
+            if (output.probability() < 1) {
+                continue;
+            }
+            ItemVariant outputKey = output.variant();
+            Item outputItem = outputKey.getItem();
+            int maxStackSize = outputKey.getMaxStackSize();
+            long remainingAmount = output.amount();
+            // Try to insert in non-empty stacks or locked first, then also allow insertion
+            // in empty stacks.
+            for (int loopRun = 0; loopRun < 2 && remainingAmount > 0; loopRun++) {
+                for (int i = 0; i < stacks.size() && remainingAmount > 0; ++i) {
+                    ConfigurableItemStack stack = stacks.get(i);
+                    ItemVariant key = itemKeys[i];
+                    boolean blank = key.isBlank();
+                    if (!blank && !key.equals(outputKey)) {
+                        continue;
+                    }
+                    int adjustedCapacity = stack.getAdjustedCapacity();
+                    long remainingCapacity = adjustedCapacity < amounts[i] ? 0 : Math.min(maxStackSize, adjustedCapacity) - amounts[i];
+                    long ins = Math.min(remainingAmount, remainingCapacity);
+                    if (ins > 0 && blank) {
+                        if ((stack.isMachineLocked() || stack.isPlayerLocked() || loopRun == 1) && stack.isResourceAllowedByLock(outputItem)) {
+                            itemKeys[i] = outputKey;
+                        } else {
+                            ins = 0;
+                        }
+                    }
+                    if (ins > 0) {
+                        amounts[i] += ins;
+                        remainingAmount -= ins;
+                        recordItemLock(i, outputItem);
+                    }
+                }
+            }
+            if (remainingAmount > 0) {
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+    /**
+     * Probabilistic outputs are not checked. The locks of the slots that would receive the outputs are recorded,
+     * even if the whole recipe does not fit.
+     */
+    public boolean canPutFluidOutputs(List<ConfigurableFluidStack> stacks, MachineRecipe recipe, int maxFluidOutputs) {
+        loadFluids(stacks);
+        fluidLockCount = 0;
+
+        boolean ok = true;
+        for (int i = 0; i < Math.min(recipe.fluidOutputs.size(), maxFluidOutputs); ++i) {
+            MachineRecipe.FluidOutput output = recipe.fluidOutputs.get(i);
+            if (output.probability() < 1) {
+                continue;
+            }
+            FluidVariant outputKey = recipe.getFluidOutputVariant(i);
+            // First, try to find a slot that contains the fluid. If we couldn't find one,
+            // we insert in any stack
+            outer: for (int tries = 0; tries < 2; ++tries) {
+                for (int j = 0; j < stacks.size(); j++) {
+                    ConfigurableFluidStack stack = stacks.get(j);
+                    if (stack.isResourceAllowedByLock(output.fluid())
+                            && ((tries == 1 && fluidKeys[j].isBlank()) || fluidKeys[j].equals(outputKey))) {
+                        long inserted = Math.min(output.amount(), stack.getCapacity() - amounts[j]);
+                        if (inserted > 0) {
+                            fluidKeys[j] = outputKey;
+                            amounts[j] += inserted;
+                            recordFluidLock(j, output.fluid());
+                        }
+                        if (inserted < output.amount()) {
+                            ok = false;
+                        }
+                        break outer;
+                    }
+                }
+                if (tries == 1) {
+                    ok = false;
+                }
+            }
+        }
+        return ok;
+    }
+
+    /**
+     * Apply the locks recorded by the last call to {@link #canPutItemOutputs}.
+     */
+    public void lockItemOutputs(List<ConfigurableItemStack> stacks) {
+        for (int i = 0; i < itemLockCount; ++i) {
+            stacks.get(itemLockSlots[i]).enableMachineLock(itemLocks[i]);
+        }
+    }
+
+    /**
+     * Apply the locks recorded by the last call to {@link #canPutFluidOutputs}.
+     */
+    public void lockFluidOutputs(List<ConfigurableFluidStack> stacks) {
+        for (int i = 0; i < fluidLockCount; ++i) {
+            stacks.get(fluidLockSlots[i]).enableMachineLock(fluidLocks[i]);
+        }
+    }
+
+    private void recordItemLock(int slot, Item item) {
+        if (itemLockCount == itemLockSlots.length) {
+            int newLength = Math.max(4, 2 * itemLockCount);
+            itemLockSlots = Arrays.copyOf(itemLockSlots, newLength);
+            itemLocks = Arrays.copyOf(itemLocks, newLength);
+        }
+        itemLockSlots[itemLockCount] = slot;
+        itemLocks[itemLockCount] = item;
+        itemLockCount++;
+    }
+
+    private void recordFluidLock(int slot, Fluid fluid) {
+        if (fluidLockCount == fluidLockSlots.length) {
+            int newLength = Math.max(4, 2 * fluidLockCount);
+            fluidLockSlots = Arrays.copyOf(fluidLockSlots, newLength);
+            fluidLocks = Arrays.copyOf(fluidLocks, newLength);
+        }
+        fluidLockSlots[fluidLockCount] = slot;
+        fluidLocks[fluidLockCount] = fluid;
+        fluidLockCount++;
+    }
+}
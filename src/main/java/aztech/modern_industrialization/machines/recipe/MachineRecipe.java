@@ -24,16 +24,21 @@
 package aztech.modern_industrialization.machines.recipe;
 
 import aztech.modern_industrialization.machines.recipe.condition.MachineProcessCondition;
+import aztech.modern_industrialization.thirdparty.fabrictransfer.api.fluid.FluidVariant;
 import aztech.modern_industrialization.thirdparty.fabrictransfer.api.item.ItemVariant;
 import aztech.modern_industrialization.util.DefaultedListWrapper;
 import aztech.modern_industrialization.util.MIExtraCodecs;
 import com.mojang.serialization.Codec;
 import com.mojang.serialization.MapCodec;
 import com.mojang.serialization.codecs.RecordCodecBuilder;
+import it.unimi.dsi.fastutil.objects.ReferenceOpenHashSet;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.stream.Collectors;
 import net.minecraft.core.HolderLookup;
 import net.minecraft.core.NonNullList;
@@ -55,6 +60,7 @@ import net.minecraft.world.level.Level;
 import net.minecraft.world.level.material.Fluid;
 import net.neoforged.neoforge.common.util.NeoForgeExtraCodecs;
 import net.neoforged.neoforge.network.codec.NeoForgeStreamCodecs;
+import org.jetbrains.annotations.Nullable;
 
 public class MachineRecipe implements Recipe<RecipeInput> {
     public static MapCodec<MachineRecipe> codec(MachineRecipeType type) {
@@ -121,6 +127,12 @@ public class MachineRecipe implements Recipe<RecipeInput> {
     public List<FluidOutput> fluidOutputs = new ArrayList<>();
     public List<MachineProcessCondition> conditions = new ArrayList<>();
 
+    /**
+     * Variants of the fluid inputs and outputs, built on first use.
+     */
+    @Nullable
+    private FluidVariant[] fluidInputVariants, fluidOutputVariants;
+
     MachineRecipe(MachineRecipeType type) {
         this.type = type;
     }
@@ -129,6 +141,20 @@ public class MachineRecipe implements Recipe<RecipeInput> {
         return (long) eu * duration;
     }
 
+    public FluidVariant getFluidInputVariant(int index) {
+        if (fluidInputVariants == null || fluidInputVariants.length != fluidInputs.size()) {
+            fluidInputVariants = fluidInputs.stream().map(input -> FluidVariant.of(input.fluid)).toArray(FluidVariant[]::new);
+        }
+        return fluidInputVariants[index];
+    }
+
+    public FluidVariant getFluidOutputVariant(int index) {
+        if (fluidOutputVariants == null || fluidOutputVariants.length != fluidOutputs.size()) {
+            fluidOutputVariants = fluidOutputs.stream().map(output -> FluidVariant.of(output.fluid)).toArray(FluidVariant[]::new);
+        }
+        return fluidOutputVariants[index];
+    }
+
     @Override
     public boolean isSpecial() {
         return true;
@@ -200,7 +226,21 @@ public class MachineRecipe implements Recipe<RecipeInput> {
                     deserialized -> deserialized.orElse(1),
                     Optional::of);
 
-    public record ItemInput(Ingredient ingredient, int amount, float probability) {
+    /**
+     * Not a record, so that the items accepted by the ingredient can be cached.
+     */
+    public static final class ItemInput {
+        private final Ingredient ingredient;
+        private final int amount;
+        private final float probability;
+        @Nullable
+        private volatile MatchCache matchCache;
+
+        public ItemInput(Ingredient ingredient, int amount, float probability) {
+            this.ingredient = ingredient;
+            this.amount = amount;
+            this.probability = probability;
+        }
 
         public static final Codec<ItemInput> CODEC = RecordCodecBuilder.create(
                 g -> g.group(
@@ -218,12 +258,96 @@ public class MachineRecipe implements Recipe<RecipeInput> {
                 ItemInput::probability,
                 ItemInput::new);
 
+        public Ingredient ingredient() {
+            return ingredient;
+        }
+
+        public int amount() {
+            return amount;
+        }
+
+        public float probability() {
+            return probability;
+        }
+
+        /**
+         * @param componentSensitive True if the ingredient might check the components of the stacks, and not only their item.
+         */
+        private record MatchCache(int generation, List<Item> items, Set<Item> itemSet, boolean componentSensitive) {
+        }
+
+        /**
+         * The cache is rebuilt after the recipes (and therefore the tags) were reloaded.
+         */
+        private MatchCache getMatchCache() {
+            var cache = matchCache;
+            int generation = MachineRecipeType.getRecipeGeneration();
+            if (cache == null || cache.generation != generation) {
+                List<Item> items = Arrays.stream(ingredient.getItems()).map(ItemStack::getItem).distinct().toList();
+                cache = new MatchCache(generation, items, Collections.unmodifiableSet(new ReferenceOpenHashSet<>(items)), !ingredient.isSimple());
+                matchCache = cache;
+            }
+            return cache;
+        }
+
         public boolean matches(ItemStack otherStack) {
             return ingredient.test(otherStack);
         }
 
+        /**
+         * Same as {@link #matches(ItemStack)}, but only builds a stack for ingredients that might check components.
+         */
+        public boolean matches(ItemVariant variant) {
+            var cache = getMatchCache();
+            if (cache.componentSensitive) {
+                return ingredient.test(variant.toStack());
+            }
+            return cache.itemSet.contains(variant.getItem());
+        }
+
+        /**
+         * Check if a stack of the item without components matches.
+         */
+        public boolean matches(Item item) {
+            var cache = getMatchCache();
+            if (cache.componentSensitive) {
+                return ingredient.test(new ItemStack(item));
+            }
+            return cache.itemSet.contains(item);
+        }
+
+        /**
+         * Never modify the result!
+         */
         public List<Item> getInputItems() {
-            return Arrays.stream(ingredient.getItems()).map(ItemStack::getItem).distinct().collect(Collectors.toList());
+            return getMatchCache().items;
+        }
+
+        /**
+         * Never modify the result!
+         */
+        public Set<Item> getInputItemSet() {
+            return getMatchCache().itemSet;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (o == null || getClass() != o.getClass())
+                return false;
+            ItemInput that = (ItemInput) o;
+            return amount == that.amount && Float.compare(probability, that.probability) == 0 && ingredient.equals(that.ingredient);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(ingredient, amount, probability);
+        }
+
+        @Override
+        public String toString() {
+            return "ItemInput[ingredient=" + ingredient + ", amount=" + amount + ", probability=" + probability + "]";
         }
     }
 
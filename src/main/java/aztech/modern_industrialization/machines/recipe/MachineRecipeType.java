@@ -23,18 +23,28 @@
  */
 package aztech.modern_industrialization.machines.recipe;
 
+import aztech.modern_industrialization.MI;
+import aztech.modern_industrialization.machines.init.MIMachineRecipeTypes;
 import com.mojang.serialization.DataResult;
 import com.mojang.serialization.MapCodec;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.objects.ReferenceOpenHashSet;
 import java.util.*;
 import net.minecraft.network.RegistryFriendlyByteBuf;
 import net.minecraft.network.codec.StreamCodec;
 import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.level.ServerLevel;
 import net.minecraft.world.item.Item;
 import net.minecraft.world.item.crafting.RecipeHolder;
+import net.minecraft.world.item.crafting.RecipeManager;
 import net.minecraft.world.item.crafting.RecipeSerializer;
 import net.minecraft.world.item.crafting.RecipeType;
 import net.minecraft.world.level.Level;
+import net.minecraft.world.level.material.Fluid;
 import org.jetbrains.annotations.Nullable;
 
 public class MachineRecipeType implements RecipeType<MachineRecipe>, RecipeSerializer<MachineRecipe> {
@@ -67,67 +77,198 @@ public class MachineRecipeType implements RecipeType<MachineRecipe>, RecipeSeria
     }
 
     public Collection<RecipeHolder<MachineRecipe>> getRecipesWithCache(ServerLevel level) {
-        return getManagerRecipes(level);
+        return getRecipeIndex(level).recipes;
     }
 
     @Nullable
     public RecipeHolder<MachineRecipe> getRecipe(ServerLevel world, ResourceLocation id) {
-        return getRecipesWithCache(world).stream().filter(r -> r.id().equals(id)).findFirst().orElse(null);
+        return getRecipeIndex(world).recipesById.get(id);
     }
 
     /*
-     * Smart recipe system to avoid iterating over all available recipes. Every
-     * recipe can be accessed by the type of its first input, so we build a cache
-     * Item -> MachineRecipe. We also need to store recipes that have fluid inputs
-     * but no item inputs. This cache is updated every 20 seconds in case the
-     * recipes are sometimes reloaded. TODO: only rebuild when the recipes have been
-     * reloaded
+     * Smart recipe system to avoid iterating over all available recipes. We build
+     * an inverted index Item -> MachineRecipe over every item input, and Fluid ->
+     * MachineRecipe over every fluid input, so that only the recipes that could
+     * start with the current inputs are considered. The index is built once per
+     * recipe manager, and rebuilt when the recipes are reloaded.
      */
-    private final Map<Item, List<RecipeHolder<MachineRecipe>>> recipeCache = new HashMap<>();
-    private final List<RecipeHolder<MachineRecipe>> fluidOnlyRecipes = new ArrayList<>();
-    private long lastUpdate = 0;
-    private static final long UPDATE_INTERVAL = 20 * 1000; // 20 seconds
+    private record RecipeIndex(RecipeManager manager, int generation, List<RecipeHolder<MachineRecipe>> recipes,
+            Map<ResourceLocation, RecipeHolder<MachineRecipe>> recipesById,
+            Map<Item, List<RecipeHolder<MachineRecipe>>> recipesByFirstItem,
+            List<RecipeHolder<MachineRecipe>> fluidOnlyRecipes,
+            // Positions in recipes of the recipes that use each item or fluid
+            Map<Item, int[]> recipesByItem,
+            Map<Fluid, int[]> recipesByFluid,
+            // Items accepted by each item input, by recipe position
+            Set<Item>[][] inputItems) {
+
+        /**
+         * Check that every input of the recipe is matched by one of the items or fluids.
+         */
+        boolean inputsPresent(int recipe, Set<Item> items, Set<Fluid> fluids) {
+            for (Set<Item> acceptedItems : inputItems[recipe]) {
+                if (!intersects(acceptedItems, items)) {
+                    return false;
+                }
+            }
+            for (MachineRecipe.FluidInput input : recipes.get(recipe).value().fluidInputs) {
+                if (!fluids.contains(input.fluid())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean intersects(Set<Item> a, Set<Item> b) {
+            if (a.size() > b.size()) {
+                return intersects(b, a);
+            }
+            for (Item item : a) {
+                if (b.contains(item)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
 
     /**
-     * Update recipe cache if necessary
+     * Incremented every time the recipes are reloaded, in case they are reloaded
+     * without replacing the recipe manager.
      */
-    private void updateRecipeCache(ServerLevel world) {
-        long time = System.currentTimeMillis();
-        if (time - lastUpdate <= UPDATE_INTERVAL)
-            return;
-
-        // Update cache
-        lastUpdate = time;
-        recipeCache.clear();
-        fluidOnlyRecipes.clear();
-        for (RecipeHolder<MachineRecipe> recipe : getRecipesWithCache(world)) {
+    private static volatile int recipeGeneration = 0;
+    @Nullable
+    private volatile RecipeIndex recipeIndex;
+
+    public static int getRecipeGeneration() {
+        return recipeGeneration;
+    }
+
+    private RecipeIndex getRecipeIndex(ServerLevel world) {
+        var index = recipeIndex;
+        if (index == null || index.manager != world.getRecipeManager() || index.generation != recipeGeneration) {
+            index = buildRecipeIndex(world);
+            recipeIndex = index;
+        }
+        return index;
+    }
+
+    @SuppressWarnings("unchecked")
+    private RecipeIndex buildRecipeIndex(ServerLevel world) {
+        int generation = recipeGeneration;
+        List<RecipeHolder<MachineRecipe>> recipes = List.copyOf(getRecipesWithoutCache(world));
+
+        Map<ResourceLocation, RecipeHolder<MachineRecipe>> recipesById = new HashMap<>();
+        Map<Item, List<RecipeHolder<MachineRecipe>>> recipesByFirstItem = new HashMap<>();
+        List<RecipeHolder<MachineRecipe>> fluidOnlyRecipes = new ArrayList<>();
+        Map<Item, IntArrayList> recipesByItem = new HashMap<>();
+        Map<Fluid, IntArrayList> recipesByFluid = new HashMap<>();
+        Set<Item>[][] inputItems = new Set[recipes.size()][];
+        for (int i = 0; i < recipes.size(); ++i) {
+            RecipeHolder<MachineRecipe> recipe = recipes.get(i);
+            recipesById.putIfAbsent(recipe.id(), recipe);
             if (recipe.value().itemInputs.size() == 0) {
                 if (recipe.value().fluidInputs.size() > 0) {
                     fluidOnlyRecipes.add(recipe);
                 }
             } else {
                 for (Item inputItem : recipe.value().itemInputs.get(0).getInputItems()) {
-                    recipeCache.putIfAbsent(inputItem, new ArrayList<>());
-                    recipeCache.get(inputItem).add(recipe);
+                    recipesByFirstItem.computeIfAbsent(inputItem, item -> new ArrayList<>()).add(recipe);
+                }
+            }
+
+            // Inverted index: add each recipe once per item or fluid, even if several inputs use it
+            Set<Item> recipeItems = new ReferenceOpenHashSet<>();
+            inputItems[i] = new Set[recipe.value().itemInputs.size()];
+            for (int j = 0; j < inputItems[i].length; ++j) {
+                inputItems[i][j] = recipe.value().itemInputs.get(j).getInputItemSet();
+                recipeItems.addAll(inputItems[i][j]);
+            }
+            for (Item item : recipeItems) {
+                recipesByItem.computeIfAbsent(item, it -> new IntArrayList()).add(i);
+            }
+            Set<Fluid> recipeFluids = new ReferenceOpenHashSet<>();
+            for (MachineRecipe.FluidInput input : recipe.value().fluidInputs) {
+                if (recipeFluids.add(input.fluid())) {
+                    recipesByFluid.computeIfAbsent(input.fluid(), f -> new IntArrayList()).add(i);
                 }
             }
         }
+        recipesByFirstItem.replaceAll((item, itemRecipes) -> List.copyOf(itemRecipes));
+
+        Map<Item, int[]> itemPositions = new HashMap<>();
+        recipesByItem.forEach((item, positions) -> itemPositions.put(item, positions.toIntArray()));
+        Map<Fluid, int[]> fluidPositions = new HashMap<>();
+        recipesByFluid.forEach((fluid, positions) -> fluidPositions.put(fluid, positions.toIntArray()));
+
+        return new RecipeIndex(world.getRecipeManager(), generation, recipes, Map.copyOf(recipesById), Map.copyOf(recipesByFirstItem),
+                List.copyOf(fluidOnlyRecipes), Map.copyOf(itemPositions), Map.copyOf(fluidPositions), inputItems);
     }
 
     /**
      * Get all recipes that are using some Item.
      */
     public Collection<RecipeHolder<MachineRecipe>> getMatchingRecipes(ServerLevel world, Item input) {
-        updateRecipeCache(world);
-        return Collections.unmodifiableCollection(recipeCache.getOrDefault(input, Collections.emptyList()));
+        return getRecipeIndex(world).recipesByFirstItem.getOrDefault(input, List.of());
     }
 
     /**
      * Get all recipes that are not using any input item.
      */
     public Collection<RecipeHolder<MachineRecipe>> getFluidOnlyRecipes(ServerLevel world) {
-        updateRecipeCache(world);
-        return Collections.unmodifiableList(fluidOnlyRecipes);
+        return getRecipeIndex(world).fluidOnlyRecipes;
+    }
+
+    /**
+     * Get the recipes for which every item and fluid input is matched by one of the
+     * given items and fluids. The recipes are returned in recipe order, without
+     * duplicates, in a new list that the caller may modify.
+     */
+    public List<RecipeHolder<MachineRecipe>> getCandidateRecipes(ServerLevel world, Set<Item> items, Set<Fluid> fluids) {
+        var index = getRecipeIndex(world);
+        IntSet visited = new IntOpenHashSet();
+        IntArrayList candidates = new IntArrayList();
+        for (Item item : items) {
+            addCandidates(index, index.recipesByItem.get(item), items, fluids, visited, candidates);
+        }
+        for (Fluid fluid : fluids) {
+            addCandidates(index, index.recipesByFluid.get(fluid), items, fluids, visited, candidates);
+        }
+        IntArrays.quickSort(candidates.elements(), 0, candidates.size());
+
+        List<RecipeHolder<MachineRecipe>> result = new ArrayList<>(candidates.size());
+        for (int i = 0; i < candidates.size(); ++i) {
+            result.add(index.recipes.get(candidates.getInt(i)));
+        }
+        return result;
+    }
+
+    private static void addCandidates(RecipeIndex index, int @Nullable [] recipes, Set<Item> items, Set<Fluid> fluids, IntSet visited,
+            IntArrayList candidates) {
+        if (recipes != null) {
+            for (int recipe : recipes) {
+                if (visited.add(recipe) && index.inputsPresent(recipe, items, fluids)) {
+                    candidates.add(recipe);
+                }
+            }
+        }
+    }
+
+    /**
+     * Rebuild the recipe indexes of all the machine recipe types, after the server
+     * started or after the recipes were reloaded.
+     */
+    public static void rebuildRecipeIndexes(MinecraftServer server, boolean reload) {
+        if (reload) {
+            recipeGeneration++;
+        }
+        long start = System.nanoTime();
+        int recipeCount = 0;
+        for (MachineRecipeType type : MIMachineRecipeTypes.getRecipeTypes()) {
+            recipeCount += type.getRecipeIndex(server.overworld()).recipes.size();
+        }
+        MI.LOGGER.info("Built machine recipe indexes of {} recipes {} in {} ms", recipeCount, reload ? "after reload" : "at startup",
+                (System.nanoTime() - start) / 1_000_000);
     }
 
     private final ResourceLocation id;
@@ -25,8 +25,10 @@ package aztech.modern_industrialization.network;
 
 import aztech.modern_industrialization.proxy.CommonProxy;
 import net.minecraft.network.protocol.common.custom.CustomPacketPayload;
+import net.minecraft.server.level.ServerLevel;
 import net.minecraft.server.level.ServerPlayer;
 import net.minecraft.world.entity.player.Player;
+import net.minecraft.world.level.ChunkPos;
 import net.neoforged.neoforge.network.PacketDistributor;
 import net.neoforged.neoforge.network.handling.IPayloadContext;
 
@@ -41,6 +43,10 @@ public interface BasePacket extends CustomPacketPayload {
         PacketDistributor.sendToPlayer(player, this);
     }
 
+    default void sendToPlayersTrackingChunk(ServerLevel level, ChunkPos chunk) {
+        PacketDistributor.sendToPlayersTrackingChunk(level, chunk, this);
+    }
+
     @Override
     default Type<? extends CustomPacketPayload> type() {
         return MIPackets.packetTypes.get(getClass());
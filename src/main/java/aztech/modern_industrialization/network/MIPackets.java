@@ -38,6 +38,7 @@ import aztech.modern_industrialization.network.machines.SetLockingModePacket;
 import aztech.modern_industrialization.network.machines.UpdateFluidSlotPacket;
 import aztech.modern_industrialization.network.machines.UpdateItemSlotPacket;
 import aztech.modern_industrialization.network.pipes.IncrementPriorityPacket;
+import aztech.modern_industrialization.network.pipes.PipeConnectionsSyncPacket;
 import aztech.modern_industrialization.network.pipes.SetConnectionTypePacket;
 import aztech.modern_industrialization.network.pipes.SetItemWhitelistPacket;
 import aztech.modern_industrialization.network.pipes.SetNetworkFluidPacket;
@@ -86,6 +87,7 @@ public class MIPackets {
         register("set_auto_extract", SetAutoExtractPacket.class, SetAutoExtractPacket.STREAM_CODEC);
         // Pipes
         register("increment_priority", IncrementPriorityPacket.class, IncrementPriorityPacket.STREAM_CODEC);
+        register("pipe_connections_sync", PipeConnectionsSyncPacket.class, PipeConnectionsSyncPacket.STREAM_CODEC);
         register("set_connection_type", SetConnectionTypePacket.class, SetConnectionTypePacket.STREAM_CODEC);
         register("set_item_whitelist", SetItemWhitelistPacket.class, SetItemWhitelistPacket.STREAM_CODEC);
         register("set_network_fluid", SetNetworkFluidPacket.class, SetNetworkFluidPacket.STREAM_CODEC);
@@ -0,0 +1,163 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Azercoco & Technici4n
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package aztech.modern_industrialization.network.pipes;
+
+import aztech.modern_industrialization.network.BasePacket;
+import aztech.modern_industrialization.pipes.api.PipeEndpointType;
+import aztech.modern_industrialization.pipes.api.PipeNetworkType;
+import aztech.modern_industrialization.pipes.impl.PipeBlockEntity;
+import aztech.modern_industrialization.proxy.CommonProxy;
+import io.netty.buffer.ByteBuf;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.network.codec.ByteBufCodecs;
+import net.minecraft.network.codec.StreamCodec;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+
+/**
+ * Connection changes of all the pipes of a chunk that changed during one tick.
+ * Pipe types are sent once per packet in a palette, and the six connections of a
+ * pipe are packed in a single int, 3 bits per direction.
+ */
+public record PipeConnectionsSyncPacket(ChunkPos chunk, List<Entry> entries) implements BasePacket {
+    private static final int NO_CONNECTION = 7;
+
+    public static final StreamCodec<ByteBuf, PipeConnectionsSyncPacket> STREAM_CODEC = StreamCodec.of(
+            PipeConnectionsSyncPacket::write,
+            PipeConnectionsSyncPacket::read);
+
+    /**
+     * @param pos         The position of the pipe, inside {@link #chunk}.
+     * @param types       The pipe types, in the order of {@code connections}.
+     * @param connections The packed connections of each type, see {@link #packConnections}.
+     */
+    public record Entry(BlockPos pos, ResourceLocation[] types, int[] connections) {
+    }
+
+    public static int packConnections(PipeEndpointType[] connections) {
+        int packed = 0;
+        for (int i = 0; i < 6; ++i) {
+            PipeEndpointType type = connections[i];
+            packed |= (type == null ? NO_CONNECTION : type.getId()) << (3 * i);
+        }
+        return packed;
+    }
+
+    public static PipeEndpointType[] unpackConnections(int packed) {
+        PipeEndpointType[] connections = new PipeEndpointType[6];
+        for (int i = 0; i < 6; ++i) {
+            connections[i] = PipeEndpointType.byId((packed >> (3 * i)) & 7);
+        }
+        return connections;
+    }
+
+    private static void write(ByteBuf buf, PipeConnectionsSyncPacket packet) {
+        Object2IntMap<ResourceLocation> palette = new Object2IntOpenHashMap<>();
+        List<ResourceLocation> paletteList = new ArrayList<>();
+        for (Entry entry : packet.entries) {
+            for (ResourceLocation type : entry.types) {
+                if (!palette.containsKey(type)) {
+                    palette.put(type, paletteList.size());
+                    paletteList.add(type);
+                }
+            }
+        }
+
+        ByteBufCodecs.VAR_INT.encode(buf, packet.chunk.x);
+        ByteBufCodecs.VAR_INT.encode(buf, packet.chunk.z);
+        ByteBufCodecs.VAR_INT.encode(buf, paletteList.size());
+        for (ResourceLocation type : paletteList) {
+            ResourceLocation.STREAM_CODEC.encode(buf, type);
+        }
+        ByteBufCodecs.VAR_INT.encode(buf, packet.entries.size());
+        for (Entry entry : packet.entries) {
+            buf.writeByte(SectionPos.sectionRelative(entry.pos.getX()) << 4 | SectionPos.sectionRelative(entry.pos.getZ()));
+            ByteBufCodecs.VAR_INT.encode(buf, entry.pos.getY());
+            buf.writeByte(entry.types.length);
+            for (int i = 0; i < entry.types.length; ++i) {
+                ByteBufCodecs.VAR_INT.encode(buf, palette.getInt(entry.types[i]));
+                ByteBufCodecs.VAR_INT.encode(buf, entry.connections[i]);
+            }
+        }
+    }
+
+    private static PipeConnectionsSyncPacket read(ByteBuf buf) {
+        ChunkPos chunk = new ChunkPos(ByteBufCodecs.VAR_INT.decode(buf), ByteBufCodecs.VAR_INT.decode(buf));
+        ResourceLocation[] palette = new ResourceLocation[ByteBufCodecs.VAR_INT.decode(buf)];
+        for (int i = 0; i < palette.length; ++i) {
+            palette[i] = ResourceLocation.STREAM_CODEC.decode(buf);
+        }
+        int entryCount = ByteBufCodecs.VAR_INT.decode(buf);
+        List<Entry> entries = new ArrayList<>(entryCount);
+        for (int i = 0; i < entryCount; ++i) {
+            int xz = buf.readUnsignedByte();
+            BlockPos pos = chunk.getBlockAt(xz >> 4, ByteBufCodecs.VAR_INT.decode(buf), xz & 15);
+            ResourceLocation[] types = new ResourceLocation[buf.readUnsignedByte()];
+            int[] connections = new int[types.length];
+            for (int j = 0; j < types.length; ++j) {
+                types[j] = palette[ByteBufCodecs.VAR_INT.decode(buf)];
+                connections[j] = ByteBufCodecs.VAR_INT.decode(buf);
+            }
+            entries.add(new Entry(pos, types, connections));
+        }
+        return new PipeConnectionsSyncPacket(chunk, entries);
+    }
+
+    @Override
+    public void handle(Context ctx) {
+        ctx.assertOnClient();
+
+        Level level = ctx.getPlayer().level();
+        LongSet dirtySections = new LongOpenHashSet();
+        for (Entry entry : entries) {
+            if (level.isLoaded(entry.pos) && level.getBlockEntity(entry.pos) instanceof PipeBlockEntity pipe) {
+                SortedMap<PipeNetworkType, PipeEndpointType[]> connections = new TreeMap<>();
+                for (int i = 0; i < entry.types.length; ++i) {
+                    PipeNetworkType type = PipeNetworkType.get(entry.types[i]);
+                    if (type != null) {
+                        connections.put(type, unpackConnections(entry.connections[i]));
+                    }
+                }
+                pipe.applyConnectionsUpdate(connections);
+                dirtySections.add(SectionPos.asLong(entry.pos));
+            }
+        }
+        // Rebuild each affected section once, instead of once per pipe.
+        for (LongIterator it = dirtySections.iterator(); it.hasNext();) {
+            long section = it.nextLong();
+            CommonProxy.INSTANCE.markSectionDirty(SectionPos.x(section), SectionPos.y(section), SectionPos.z(section));
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Azercoco & Technici4n
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package aztech.modern_industrialization.pipes;
+
+/**
+ * Lets a pipe network skip ticks while it cannot move anything, with an
+ * exponential backoff. The network must {@linkplain #wake wake} the tracker when
+ * something that could allow a transfer changes, e.g. a connection or an
+ * adjacent capability.
+ */
+public class PipeSleepTracker {
+    private static final int MAX_SLEEP_TICKS = 16;
+
+    private int backoff = 0;
+    private int sleepTicks = 0;
+
+    /**
+     * Must be called at the start of every tick.
+     *
+     * @return true if the network should skip this tick
+     */
+    public boolean shouldSkipTick() {
+        if (sleepTicks > 0) {
+            sleepTicks--;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Must be called at the end of every tick that was not skipped.
+     */
+    public void onTickDone(boolean moved) {
+        if (moved) {
+            backoff = 0;
+        } else {
+            backoff = backoff == 0 ? 1 : Math.min(2 * backoff, MAX_SLEEP_TICKS);
+            sleepTicks = backoff;
+        }
+    }
+
+    public void wake() {
+        backoff = 0;
+        sleepTicks = 0;
+    }
+
+    public boolean isSleeping() {
+        return sleepTicks > 0;
+    }
+}
@@ -23,6 +23,13 @@
  */
 package aztech.modern_industrialization.pipes.api;
 
+import aztech.modern_industrialization.MIConfig;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
 import java.util.*;
 import net.minecraft.core.BlockPos;
 import net.minecraft.core.HolderLookup;
@@ -38,9 +45,20 @@ import org.jetbrains.annotations.Nullable;
 public abstract class PipeNetwork {
     protected int id;
     public PipeNetworkManager manager;
+    /**
+     * Only allocated while {@link MIConfig#collectPipeNetworkStats} is enabled.
+     */
+    @Nullable
+    private PipeNetworkTelemetry telemetry;
     public PipeNetworkData data;
-    private final Map<BlockPos, PipeNetworkNode> nodes = new HashMap<>();
-    private final Map<Long, Map<BlockPos, PipeNetworkNode>> nodesByChunk = new HashMap<>();
+    /**
+     * Nodes keyed by {@link BlockPos#asLong}. The value is null if the node is not loaded.
+     */
+    private final Long2ObjectOpenHashMap<PipeNetworkNode> nodes = new Long2ObjectOpenHashMap<>();
+    /**
+     * Packed node positions keyed by {@link ChunkPos#asLong}.
+     */
+    private final Long2ObjectOpenHashMap<LongSet> nodesByChunk = new Long2ObjectOpenHashMap<>();
     private final List<PosNode> tickingNodesCache = new ArrayList<>();
     boolean tickingCacheValid = false;
 
@@ -60,12 +78,77 @@ public abstract class PipeNetwork {
         return tag;
     }
 
+    /**
+     * Called for every network before any of them {@linkplain #tick ticks}, to
+     * rebuild the caches of the ticking nodes. It may touch nodes that were just
+     * moved from another network, but should not access the world: capability
+     * lookups and transfers belong in {@link #tick}.
+     */
+    public void prepareTick() {
+        iterateTickingNodes();
+    }
+
     /**
      * <b>Only access nodes that are ticking, for example with {@link #iterateTickingNodes}!</b>
      */
     public void tick(ServerLevel world) {
     }
 
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Number of storages that this network currently transfers to or from, for statistics.
+     */
+    public int getEndpointCount() {
+        return 0;
+    }
+
+    /**
+     * Whether this network is currently skipping ticks because it has nothing to do.
+     */
+    public boolean isSleeping() {
+        return false;
+    }
+
+    /**
+     * @return The tick statistics of this network, or null if they are not collected.
+     */
+    @Nullable
+    public PipeNetworkTelemetry getTelemetry() {
+        return telemetry;
+    }
+
+    PipeNetworkTelemetry getOrCreateTelemetry() {
+        if (telemetry == null) {
+            telemetry = new PipeNetworkTelemetry();
+        }
+        return telemetry;
+    }
+
+    void clearTelemetry() {
+        telemetry = null;
+    }
+
+    /**
+     * Report an amount moved during the current tick, for statistics.
+     */
+    protected final void reportMoved(long amount) {
+        if (telemetry != null) {
+            telemetry.addMoved(amount);
+        }
+    }
+
+    /**
+     * Report that this network skipped the current tick, for statistics.
+     */
+    protected final void reportSleeping() {
+        if (telemetry != null) {
+            telemetry.markSleeping();
+        }
+    }
+
     /**
      * Allow merging networks when the player explicitly requests to do so. When
      * this function is called, it must return a new PipeNetworkData without
@@ -85,49 +168,119 @@ public abstract class PipeNetwork {
     public void onRemove() {
     }
 
+    /**
+     * Called every time a node is added to this network, or updated because it was
+     * loaded or unloaded.
+     */
+    protected void onSetNode(@Nullable PipeNetworkNode node) {
+    }
+
+    /**
+     * Called every time the list returned by {@link #iterateTickingNodes} is
+     * rebuilt, which happens after nodes were added, removed, loaded or unloaded,
+     * or when the ticking status of a chunk changed. Can be called from
+     * {@link #prepareTick}.
+     */
+    protected void onTickingNodesChanged() {
+    }
+
     @Nullable
     public PipeNetworkNode getNode(BlockPos pos) {
-        return this.nodes.get(pos);
+        return this.nodes.get(pos.asLong());
     }
 
     public void setNode(BlockPos pos, @Nullable PipeNetworkNode node) {
-        this.nodes.put(pos.immutable(), node);
+        setNode(pos.asLong(), node);
+    }
+
+    void setNode(long pos, @Nullable PipeNetworkNode node) {
+        onSetNode(node);
+        this.nodes.put(pos, node);
 
-        this.nodesByChunk.computeIfAbsent(ChunkPos.asLong(pos), p -> new HashMap<>()).put(pos.immutable(), node);
+        long chunk = ChunkPos.asLong(BlockPos.getX(pos) >> 4, BlockPos.getZ(pos) >> 4);
+        LongSet set = nodesByChunk.get(chunk);
+        if (set == null) {
+            set = new LongOpenHashSet();
+            nodesByChunk.put(chunk, set);
+        }
+        set.add(pos);
     }
 
     public void removeNode(BlockPos pos) {
+        removeNode(pos.asLong());
+    }
+
+    void removeNode(long pos) {
         this.nodes.remove(pos);
 
-        long chunk = ChunkPos.asLong(pos);
-        Map<BlockPos, PipeNetworkNode> map = nodesByChunk.get(chunk);
-        map.remove(pos);
-        if (map.size() == 0) {
+        long chunk = ChunkPos.asLong(BlockPos.getX(pos) >> 4, BlockPos.getZ(pos) >> 4);
+        LongSet set = nodesByChunk.get(chunk);
+        set.remove(pos);
+        if (set.isEmpty()) {
             nodesByChunk.remove(chunk);
         }
     }
 
-    public Map<BlockPos, PipeNetworkNode> getRawNodeMap() {
-        return Collections.unmodifiableMap(this.nodes);
+    /**
+     * Move all nodes of {@code other} into this network at once, leaving
+     * {@code other} empty.
+     */
+    void absorbNodes(PipeNetwork other) {
+        for (PipeNetworkNode node : other.nodes.values()) {
+            if (node != null) {
+                node.network = this;
+            }
+            onSetNode(node);
+        }
+        this.nodes.putAll(other.nodes);
+
+        // Reuse the per-chunk sets of the other network when this network doesn't
+        // span the chunk yet.
+        for (var chunkEntry : other.nodesByChunk.long2ObjectEntrySet()) {
+            LongSet set = nodesByChunk.get(chunkEntry.getLongKey());
+            if (set == null) {
+                nodesByChunk.put(chunkEntry.getLongKey(), chunkEntry.getValue());
+            } else {
+                set.addAll(chunkEntry.getValue());
+            }
+        }
+
+        other.nodes.clear();
+        other.nodesByChunk.clear();
+        this.tickingCacheValid = false;
+        other.tickingCacheValid = false;
+    }
+
+    /**
+     * Nodes keyed by {@link BlockPos#asLong}. The value is null if the node is not loaded.
+     */
+    public Long2ObjectMap<PipeNetworkNode> getRawNodeMap() {
+        return Long2ObjectMaps.unmodifiable(this.nodes);
+    }
+
+    public int getNodeCount() {
+        return this.nodes.size();
     }
 
     public Collection<PosNode> iterateTickingNodes() {
         if (!tickingCacheValid) {
             tickingNodesCache.clear();
-            for (var chunkEntry : this.nodesByChunk.entrySet()) {
+            for (var chunkEntry : this.nodesByChunk.long2ObjectEntrySet()) {
                 // noinspection deprecation
-                if (manager.tickingChunks.contains(chunkEntry.getKey())) {
-                    for (var entry : chunkEntry.getValue().entrySet()) {
-                        var node = entry.getValue();
+                if (manager.tickingChunks.contains(chunkEntry.getLongKey())) {
+                    for (LongIterator it = chunkEntry.getValue().iterator(); it.hasNext();) {
+                        long pos = it.nextLong();
+                        var node = nodes.get(pos);
                         // no idea how the chunk can be ticking and the node null,
                         // but it happens on the aof5 public server apparently...
                         if (node != null) {
-                            tickingNodesCache.add(new PosNode(entry.getKey(), node));
+                            tickingNodesCache.add(new PosNode(BlockPos.of(pos), node));
                         }
                     }
                 }
             }
             tickingCacheValid = true;
+            onTickingNodesChanged();
         }
         return tickingNodesCache;
     }
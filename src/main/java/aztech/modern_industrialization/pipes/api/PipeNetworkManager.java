@@ -23,10 +23,14 @@
  */
 package aztech.modern_industrialization.pipes.api;
 
+import aztech.modern_industrialization.MIConfig;
 import aztech.modern_industrialization.pipes.MIPipes;
 import aztech.modern_industrialization.util.NbtHelper;
 import aztech.modern_industrialization.util.WorldHelper;
 import com.google.common.base.Preconditions;
+import com.mojang.logging.LogUtils;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.longs.*;
 import java.util.*;
 import net.minecraft.core.BlockPos;
@@ -35,24 +39,80 @@ import net.minecraft.core.HolderLookup;
 import net.minecraft.nbt.CompoundTag;
 import net.minecraft.nbt.ListTag;
 import net.minecraft.nbt.Tag;
+import net.minecraft.server.level.ChunkLevel;
 import net.minecraft.server.level.ServerLevel;
 import net.minecraft.world.level.ChunkPos;
 import net.minecraft.world.level.chunk.status.ChunkStatus;
 import net.neoforged.fml.loading.FMLEnvironment;
 import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
 
 public class PipeNetworkManager {
+    private static final Logger LOGGER = LogUtils.getLogger();
     private static final boolean DEBUG_CHECKS = !FMLEnvironment.production;
+    private static final Direction[] DIRECTIONS = Direction.values();
+    /**
+     * How many ticks a chunk promoted to a block ticking level is re-checked until it
+     * actually starts ticking.
+     */
+    private static final int MAX_PENDING_TICKS = 20;
+    /**
+     * Interval in ticks between two re-checks of all spanned chunks. Ticking also
+     * depends on the simulation distance around players, and no event is fired when
+     * a loaded chunk enters or leaves it.
+     */
+    private static final int REVALIDATION_INTERVAL = 20;
 
-    private final Map<BlockPos, PipeNetwork> networkByBlock = new HashMap<>();
-    private final Map<BlockPos, Set<Direction>> links = new HashMap<>();
+    /**
+     * All maps below are keyed by {@link BlockPos#asLong}, and links are stored as
+     * a bitmask of {@link Direction#get3DDataValue}, to avoid boxing one object per
+     * pipe.
+     */
+    private final Long2ObjectOpenHashMap<PipeNetwork> networkByBlock = new Long2ObjectOpenHashMap<>();
+    private final Long2ByteOpenHashMap links = new Long2ByteOpenHashMap();
     private final Set<PipeNetwork> networks = new HashSet<>();
     private int nextNetworkId = 0;
     private final PipeNetworkType type;
 
-    private final Map<Long, Set<BlockPos>> spannedChunks = new HashMap<>();
-    protected LongSet tickingChunks = new LongOpenHashSet();
-    protected LongSet lastTickingChunks = new LongOpenHashSet();
+    private final Long2ObjectOpenHashMap<LongSet> spannedChunks = new Long2ObjectOpenHashMap<>();
+    protected final LongSet tickingChunks = new LongOpenHashSet();
+    /**
+     * Spanned chunks whose ticking status might have changed, with the number of
+     * further ticks during which they are re-checked if they are not ticking yet.
+     */
+    private final Long2IntOpenHashMap pendingChunks = new Long2IntOpenHashMap();
+    private int ticksUntilRevalidation = 0;
+    /**
+     * Chunks containing nodes whose saved state changed since the last tick.
+     */
+    private final LongSet unsavedChunks = new LongOpenHashSet();
+
+    /**
+     * Regions (see {@link #getRegion}) containing nodes or links that changed since
+     * they were last saved.
+     */
+    private final LongSet unsavedRegions = new LongOpenHashSet();
+    /**
+     * Node positions by region, so that saving only visits the unsaved regions.
+     */
+    private final Long2ObjectOpenHashMap<LongSet> nodesByRegion = new Long2ObjectOpenHashMap<>();
+    /**
+     * Whether the list of networks or their data changed since it was last saved.
+     */
+    private boolean networksUnsaved = false;
+    /**
+     * Networks by id, only used while loading.
+     */
+    @Nullable
+    private Int2ObjectOpenHashMap<PipeNetwork> loadingNetworks;
+
+    // Scratch state of the connectivity search in removeLink, reused across calls.
+    // The visited sets are trimmed back to SEARCH_SCRATCH_SIZE and the queues are
+    // trimmed after each search, so that a single large split does not keep their
+    // peak capacity forever.
+    private static final int SEARCH_SCRATCH_SIZE = 1024;
+    private final LongOpenHashSet[] searchVisited = { new LongOpenHashSet(), new LongOpenHashSet() };
+    private final LongArrayFIFOQueue[] searchQueues = { new LongArrayFIFOQueue(), new LongArrayFIFOQueue() };
 
     public PipeNetworkManager(PipeNetworkType type) {
         this.type = type;
@@ -65,29 +125,48 @@ public class PipeNetworkManager {
         // Mark ticking chunks
         updateTickingChunks(world);
 
+        // Prepare ticking, so that every network sees the nodes moved between networks
+        for (PipeNetwork network : networks) {
+            network.prepareTick();
+        }
+
         // Actual ticking
+        boolean collectStats = MIConfig.getConfig().collectPipeNetworkStats;
         for (PipeNetwork network : networks) {
-            network.tick(world);
+            if (collectStats) {
+                var telemetry = network.getOrCreateTelemetry();
+                telemetry.beginTick();
+                long startAllocated = PipeNetworkTelemetry.getCurrentThreadAllocatedBytes();
+                long start = System.nanoTime();
+                network.tick(world);
+                long nanos = System.nanoTime() - start;
+                telemetry.endTick(nanos, PipeNetworkTelemetry.getCurrentThreadAllocatedBytes() - startAllocated,
+                        network.iterateTickingNodes().size(), network.getEndpointCount());
+            } else {
+                network.clearTelemetry();
+                network.tick(world);
+            }
         }
 
-        // Mark pipes in ticking chunks as dirty.
-        for (long chunkPos : tickingChunks) {
+        // Mark chunks with modified pipes as dirty.
+        for (LongIterator chunkIt = unsavedChunks.iterator(); chunkIt.hasNext();) {
+            long chunkPos = chunkIt.nextLong();
             int chunkX = ChunkPos.getX(chunkPos);
             int chunkZ = ChunkPos.getZ(chunkPos);
             var chunk = world.getChunk(chunkX, chunkZ, ChunkStatus.FULL, false);
             if (chunk != null) {
                 chunk.setUnsaved(true);
-            } else {
+            } else if (tickingChunks.contains(chunkPos)) {
                 // This is not supposed to happen.
                 var sb = new StringBuilder();
                 sb.append("MI pipes issue: ticking spanned chunk was not loaded anymore. Please report this.\n");
                 sb.append(" - Pipe type: ").append(type.getIdentifier()).append("\n");
                 sb.append(" - Chunk: %d,%d\n".formatted(chunkX, chunkZ));
                 sb.append(" - Blocks in chunk:\n");
-                for (var it = spannedChunks.get(chunkPos).stream().sorted().iterator(); it.hasNext();) {
+                for (var it = spannedChunks.get(chunkPos).longStream().mapToObj(BlockPos::of).sorted().iterator(); it.hasNext();) {
                     var pos = it.next();
                     sb.append("   - Pos: %d %d %d\n".formatted(pos.getX(), pos.getY(), pos.getZ()));
-                    var network = networkByBlock.get(pos);
+                    var network = networkByBlock.get(pos.asLong());
                     var node = network == null ? "none" : network.getNode(pos) == null ? "not loaded" : "loaded";
                     sb.append("   - Has network (should be true): %s\n".formatted(network != null));
                     sb.append("   - Node status (should be loaded): %s\n".formatted(node));
@@ -95,40 +174,92 @@ public class PipeNetworkManager {
                 throw new UnsupportedOperationException(sb.toString());
             }
         }
+        unsavedChunks.clear();
     }
 
     public boolean hasNode(BlockPos pos) {
-        return networkByBlock.containsKey(pos);
+        return networkByBlock.containsKey(pos.asLong());
+    }
+
+    @Nullable
+    public PipeNetwork getNetwork(BlockPos pos) {
+        return networkByBlock.get(pos.asLong());
+    }
+
+    public Collection<PipeNetwork> getNetworks() {
+        return Collections.unmodifiableSet(networks);
+    }
+
+    /**
+     * Mark the chunk containing {@code pos} for saving at the end of the tick. Must
+     * be called by networks whenever the saved state of one of their nodes changes.
+     */
+    public void markNodeUnsaved(BlockPos pos) {
+        unsavedChunks.add(ChunkPos.asLong(pos));
+    }
+
+    /**
+     * Mark a chunk for saving at the end of the tick, see {@link #markNodeUnsaved}.
+     */
+    public void markChunkUnsaved(long chunkPos) {
+        unsavedChunks.add(chunkPos);
     }
 
+    /**
+     * Should be called when the ticket level of a chunk changes.
+     */
+    public void onChunkTicketLevelChanged(long chunkPos, int newTicketLevel) {
+        if (spannedChunks.containsKey(chunkPos)) {
+            pendingChunks.put(chunkPos, ChunkLevel.isBlockTicking(newTicketLevel) ? MAX_PENDING_TICKS : 0);
+        }
+    }
+
+    /**
+     * Should be called when a chunk is loaded or unloaded.
+     */
+    public void onChunkLoadChanged(long chunkPos) {
+        if (spannedChunks.containsKey(chunkPos)) {
+            pendingChunks.putIfAbsent(chunkPos, 0);
+        }
+    }
+
+    /**
+     * Update the ticking status of the chunks that might have changed since the last
+     * tick. A chunk that is promoted to a ticking level can take a few ticks to
+     * actually start ticking, so it is kept pending until it does, for at most
+     * {@link #MAX_PENDING_TICKS}. All spanned chunks are re-checked periodically to
+     * catch simulation distance changes.
+     */
     private void updateTickingChunks(ServerLevel world) {
-        var tmp = tickingChunks;
-        tickingChunks = lastTickingChunks;
-        lastTickingChunks = tmp;
-        Preconditions.checkState(tickingChunks.isEmpty(), "Internal pipe network error.");
-
-        for (Map.Entry<Long, Set<BlockPos>> entry : spannedChunks.entrySet()) {
-            long chunk = entry.getKey();
-            if (WorldHelper.isChunkTicking(world, chunk)) {
-                tickingChunks.add(chunk);
-
-                if (!lastTickingChunks.remove(chunk)) {
-                    // New ticking chunk
-                    notifyTickingChanged(entry.getValue());
-                }
+        if (--ticksUntilRevalidation <= 0) {
+            ticksUntilRevalidation = REVALIDATION_INTERVAL;
+            for (LongIterator it = spannedChunks.keySet().iterator(); it.hasNext();) {
+                pendingChunks.putIfAbsent(it.nextLong(), 0);
             }
         }
-        // Chunk that isn't ticking anymore
-        for (Long notTickingChunk : lastTickingChunks) {
-            notifyTickingChanged(spannedChunks.get(notTickingChunk));
+
+        for (var it = pendingChunks.long2IntEntrySet().fastIterator(); it.hasNext();) {
+            var entry = it.next();
+            long chunk = entry.getLongKey();
+            boolean ticking = WorldHelper.isChunkTicking(world, chunk);
+
+            if (ticking ? tickingChunks.add(chunk) : tickingChunks.remove(chunk)) {
+                notifyTickingChanged(spannedChunks.get(chunk));
+            }
+
+            int ticksLeft = entry.getIntValue();
+            if (ticking || ticksLeft <= 0) {
+                it.remove();
+            } else {
+                entry.setValue(ticksLeft - 1);
+            }
         }
-        lastTickingChunks.clear();
     }
 
-    private void notifyTickingChanged(@Nullable Set<BlockPos> positionsInChunk) {
+    private void notifyTickingChanged(@Nullable LongSet positionsInChunk) {
         if (positionsInChunk != null) {
-            for (BlockPos pos : positionsInChunk) {
-                PipeNetwork network = networkByBlock.get(pos);
+            for (LongIterator it = positionsInChunk.iterator(); it.hasNext();) {
+                PipeNetwork network = networkByBlock.get(it.nextLong());
                 network.tickingCacheValid = false;
             }
         }
@@ -145,33 +276,33 @@ public class PipeNetworkManager {
             return;
 
         // Add links
-        BlockPos otherPos = pos.relative(direction);
-        links.get(pos).add(direction);
-        links.get(otherPos).add(direction.getOpposite());
-
-        // If the networks are different, we merge all nodes into `network`. We don't
-        // change other links.
-        PipeNetwork network = networkByBlock.get(pos);
+        long packedPos = pos.asLong();
+        long otherPos = BlockPos.offset(packedPos, direction);
+        addLinkBit(packedPos, direction);
+        addLinkBit(otherPos, direction.getOpposite());
+
+        // If the networks are different, we merge all nodes of the smaller network
+        // into the larger one. We don't change other links.
+        PipeNetwork network = networkByBlock.get(packedPos);
         PipeNetwork otherNetwork = networkByBlock.get(otherPos);
         if (network != otherNetwork) {
+            if (network.getNodeCount() < otherNetwork.getNodeCount()) {
+                PipeNetwork tmp = network;
+                network = otherNetwork;
+                otherNetwork = tmp;
+            }
             if (!network.data.equals(otherNetwork.data)) {
                 network.data = network.merge(otherNetwork);
             }
-            for (Map.Entry<BlockPos, PipeNetworkNode> entry : otherNetwork.getRawNodeMap().entrySet()) {
-                PipeNetworkNode node = entry.getValue();
-                BlockPos nodePos = entry.getKey();
-                if (node != null) {
-                    node.network = network;
-                }
+            for (LongIterator it = otherNetwork.getRawNodeMap().keySet().iterator(); it.hasNext();) {
+                long nodePos = it.nextLong();
                 networkByBlock.put(nodePos, network);
-                network.setNode(nodePos, node);
-            }
-            var nodesCopy = new ArrayList<>(otherNetwork.getRawNodeMap().keySet());
-            for (var nodePos : nodesCopy) {
-                otherNetwork.removeNode(nodePos);
+                markRegionUnsaved(nodePos);
             }
+            network.absorbNodes(otherNetwork);
             otherNetwork.onRemove();
             networks.remove(otherNetwork);
+            networksUnsaved = true;
         }
         network.tickingCacheValid = false;
         checkStateCoherence();
@@ -186,66 +317,116 @@ public class PipeNetworkManager {
             return;
 
         // Remove links
-        BlockPos otherPos = pos.relative(direction);
-        links.get(pos).remove(direction);
-        links.get(otherPos).remove(direction.getOpposite());
+        long packedPos = pos.asLong();
+        long otherPos = BlockPos.offset(packedPos, direction);
+        removeLinkBit(packedPos, direction);
+        removeLinkBit(otherPos, direction.getOpposite());
 
-        // Run a DFS to mark all disconnected nodes.
-        PipeNetwork network = networkByBlock.get(pos);
-        Map<BlockPos, PipeNetworkNode> unvisitedNodes = new HashMap<>(network.getRawNodeMap());
+        PipeNetwork network = networkByBlock.get(packedPos);
         network.tickingCacheValid = false;
 
-        class Dfs {
-            private void dfs(BlockPos currentPos) {
-                // warning: don't try to use the return value of Map#remove, because it might be
-                // null if the node is not loaded.
-                if (!unvisitedNodes.containsKey(currentPos)) {
-                    return;
-                }
-                unvisitedNodes.remove(currentPos);
-                for (Direction direction : links.get(currentPos)) {
-                    dfs(currentPos.relative(direction));
-                }
-            }
-        }
-
-        // Try to put all nodes in the current network
-        Dfs dfs = new Dfs();
-        dfs.dfs(pos);
-
-        // If it was not possible, create a new network and transfer all unvisitedNodes
-        // to it.
-        if (unvisitedNodes.size() > 0) {
+        // If the two sides are not connected anymore, move the smaller one to a new
+        // network.
+        LongSet disconnectedNodes = findDisconnectedSide(packedPos, otherPos);
+        if (disconnectedNodes != null) {
             PipeNetwork newNetwork = createNetwork(network.data.clone());
-            for (Map.Entry<BlockPos, PipeNetworkNode> entry : unvisitedNodes.entrySet()) {
-                PipeNetworkNode node = entry.getValue();
-                BlockPos nodePos = entry.getKey();
+            for (LongIterator it = disconnectedNodes.iterator(); it.hasNext();) {
+                long nodePos = it.nextLong();
+                PipeNetworkNode node = network.getRawNodeMap().get(nodePos);
                 if (node != null) {
                     node.network = newNetwork;
                 }
                 networkByBlock.put(nodePos, newNetwork);
+                markRegionUnsaved(nodePos);
                 newNetwork.setNode(nodePos, node);
                 network.removeNode(nodePos);
             }
         }
+        releaseSearchState();
         checkStateCoherence();
     }
 
+    /**
+     * Run a breadth-first search from both ends of a removed link, alternating one
+     * node at a time. If the two searches meet, the nodes are still connected. If
+     * one search runs out of nodes first, the nodes it visited form a separate
+     * component. Either way, at most about twice the smaller side of the cut is
+     * explored.
+     *
+     * @return The nodes that are not connected to the other side anymore, or null
+     *         if both positions are still connected. The returned set is only valid
+     *         until the next call.
+     */
+    @Nullable
+    private LongSet findDisconnectedSide(long firstPos, long secondPos) {
+        for (int side = 0; side < 2; ++side) {
+            searchVisited[side].clear();
+            searchQueues[side].clear();
+        }
+        searchVisited[0].add(firstPos);
+        searchQueues[0].enqueue(firstPos);
+        searchVisited[1].add(secondPos);
+        searchQueues[1].enqueue(secondPos);
+
+        while (true) {
+            for (int side = 0; side < 2; ++side) {
+                LongArrayFIFOQueue queue = searchQueues[side];
+                LongOpenHashSet visited = searchVisited[side];
+                if (queue.isEmpty()) {
+                    return visited;
+                }
+
+                long currentPos = queue.dequeueLong();
+                byte currentLinks = links.get(currentPos);
+                for (Direction direction : DIRECTIONS) {
+                    if ((currentLinks & (1 << direction.get3DDataValue())) != 0) {
+                        long nextPos = BlockPos.offset(currentPos, direction);
+                        if (searchVisited[1 - side].contains(nextPos)) {
+                            return null;
+                        }
+                        if (visited.add(nextPos)) {
+                            queue.enqueue(nextPos);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void releaseSearchState() {
+        for (int side = 0; side < 2; ++side) {
+            searchVisited[side].clear();
+            searchVisited[side].trim(SEARCH_SCRATCH_SIZE);
+            searchQueues[side].clear();
+            searchQueues[side].trim();
+        }
+    }
+
     /**
      * Check if a link exists.
      */
     public boolean hasLink(BlockPos pos, Direction direction) {
-        var nodeLinks = links.get(pos);
-        return nodeLinks != null && nodeLinks.contains(direction);
+        // Missing keys return 0, i.e. no links.
+        return (links.get(pos.asLong()) & (1 << direction.get3DDataValue())) != 0;
+    }
+
+    private void addLinkBit(long pos, Direction direction) {
+        links.put(pos, (byte) (links.get(pos) | (1 << direction.get3DDataValue())));
+        markRegionUnsaved(pos);
+    }
+
+    private void removeLinkBit(long pos, Direction direction) {
+        links.put(pos, (byte) (links.get(pos) & ~(1 << direction.get3DDataValue())));
+        markRegionUnsaved(pos);
     }
 
     /**
      * Check if a link would be possible. A node must exist at pos.
      */
     public boolean canLink(BlockPos pos, Direction direction, boolean forceLink) {
-        BlockPos otherPos = pos.relative(direction);
-        PipeNetwork network = networkByBlock.get(pos);
-        PipeNetwork otherNetwork = networkByBlock.get(otherPos);
+        long packedPos = pos.asLong();
+        PipeNetwork network = networkByBlock.get(packedPos);
+        PipeNetwork otherNetwork = networkByBlock.get(BlockPos.offset(packedPos, direction));
         return otherNetwork != null && (network.data.equals(otherNetwork.data) || forceLink && network.merge(otherNetwork) != null);
     }
 
@@ -253,17 +434,20 @@ public class PipeNetworkManager {
      * Add a node and create a new network for it.
      */
     public void addNode(PipeNetworkNode node, BlockPos pos, PipeNetworkData data) {
-        if (networkByBlock.containsKey(pos))
+        long packedPos = pos.asLong();
+        if (networkByBlock.containsKey(packedPos))
             throw new IllegalArgumentException("Cannot add a node that is already in the network.");
 
         PipeNetwork network = createNetwork(data.clone());
         if (node != null) {
             node.network = network;
         }
-        networkByBlock.put(pos.immutable(), network);
-        incrementSpanned(pos);
-        network.setNode(pos, node);
-        links.put(pos.immutable(), new HashSet<>());
+        networkByBlock.put(packedPos, network);
+        addToRegion(packedPos);
+        incrementSpanned(packedPos);
+        network.setNode(packedPos, node);
+        links.put(packedPos, (byte) 0);
+        markRegionUnsaved(packedPos);
         checkStateCoherence();
     }
 
@@ -275,11 +459,15 @@ public class PipeNetworkManager {
             removeLink(pos, direction);
         }
 
-        PipeNetwork network = networkByBlock.remove(pos);
-        decrementSpanned(pos);
+        long packedPos = pos.asLong();
+        PipeNetwork network = networkByBlock.remove(packedPos);
+        removeFromRegion(packedPos);
+        decrementSpanned(packedPos);
         network.onRemove();
         networks.remove(network);
-        links.remove(pos);
+        networksUnsaved = true;
+        links.remove(packedPos);
+        markRegionUnsaved(packedPos);
         checkStateCoherence();
     }
 
@@ -287,7 +475,7 @@ public class PipeNetworkManager {
      * Should be called when a node is loaded, it will link the node to its network.
      */
     public void nodeLoaded(PipeNetworkNode node, BlockPos pos) {
-        PipeNetwork network = networkByBlock.get(pos);
+        PipeNetwork network = networkByBlock.get(pos.asLong());
         if (network == null) {
             // The network is null! That probably means that the node doesn't exist, e.g.
             // because a pipe was moved with Carrier.
@@ -303,7 +491,7 @@ public class PipeNetworkManager {
             network.setNode(pos, node);
             network.tickingCacheValid = false;
         }
-        incrementSpanned(pos);
+        incrementSpanned(pos.asLong());
         checkStateCoherence();
     }
 
@@ -314,7 +502,7 @@ public class PipeNetworkManager {
     public void nodeUnloaded(PipeNetworkNode node, BlockPos pos) {
         node.network.setNode(pos, null);
         node.network.tickingCacheValid = false;
-        decrementSpanned(pos);
+        decrementSpanned(pos.asLong());
         checkStateCoherence();
     }
 
@@ -326,53 +514,169 @@ public class PipeNetworkManager {
         network.manager = this;
         nextNetworkId++;
         networks.add(network);
+        networksUnsaved = true;
         checkStateCoherence();
         return network;
     }
 
-    private void incrementSpanned(BlockPos pos) {
-        spannedChunks.computeIfAbsent(ChunkPos.asLong(pos), p -> new HashSet<>()).add(pos.immutable());
+    private static long chunkOf(long pos) {
+        return ChunkPos.asLong(BlockPos.getX(pos) >> 4, BlockPos.getZ(pos) >> 4);
     }
 
-    private void decrementSpanned(BlockPos pos) {
-        long chunkPos = ChunkPos.asLong(pos);
-        Set<BlockPos> set = spannedChunks.get(chunkPos);
+    private void incrementSpanned(long pos) {
+        long chunkPos = chunkOf(pos);
+        LongSet set = spannedChunks.get(chunkPos);
+        if (set == null) {
+            set = new LongOpenHashSet();
+            spannedChunks.put(chunkPos, set);
+            // Newly spanned chunk, check its ticking status once.
+            pendingChunks.put(chunkPos, 0);
+        }
+        set.add(pos);
+    }
+
+    private void decrementSpanned(long pos) {
+        long chunkPos = chunkOf(pos);
+        LongSet set = spannedChunks.get(chunkPos);
         set.remove(pos);
-        if (set.size() == 0) {
+        if (set.isEmpty()) {
             spannedChunks.remove(chunkPos);
+            tickingChunks.remove(chunkPos);
+            pendingChunks.remove(chunkPos);
+        }
+    }
+
+    /**
+     * Get the region of a position, used to split the saved node data into shards.
+     * Regions are 32x32 chunks, like vanilla region files.
+     */
+    public static long getRegion(long pos) {
+        return ChunkPos.asLong(BlockPos.getX(pos) >> 9, BlockPos.getZ(pos) >> 9);
+    }
+
+    private void markRegionUnsaved(long pos) {
+        unsavedRegions.add(getRegion(pos));
+    }
+
+    private void addToRegion(long pos) {
+        long region = getRegion(pos);
+        LongSet set = nodesByRegion.get(region);
+        if (set == null) {
+            set = new LongOpenHashSet();
+            nodesByRegion.put(region, set);
+        }
+        set.add(pos);
+    }
+
+    private void removeFromRegion(long pos) {
+        long region = getRegion(pos);
+        LongSet set = nodesByRegion.get(region);
+        set.remove(pos);
+        if (set.isEmpty()) {
+            nodesByRegion.remove(region);
         }
     }
 
+    /**
+     * Mark the data of the networks as needing to be saved. Must be called by
+     * networks whenever their {@link PipeNetworkData} changes.
+     */
+    public void markNetworksUnsaved() {
+        networksUnsaved = true;
+    }
+
+    public boolean hasUnsavedNetworks() {
+        return networksUnsaved;
+    }
+
+    /**
+     * Add the regions that need to be saved to {@code regions}.
+     */
+    public void collectUnsavedRegions(LongSet regions) {
+        regions.addAll(unsavedRegions);
+    }
+
+    public boolean isRegionUnsaved(long region) {
+        return unsavedRegions.contains(region);
+    }
+
+    public void markRegionSaved(long region) {
+        unsavedRegions.remove(region);
+    }
+
+    /**
+     * Load the legacy single-file format, where the nodes of all networks were
+     * stored alongside the networks. Everything is marked as unsaved so that it
+     * gets written back in the sharded format.
+     */
     public void fromNbt(CompoundTag tag, HolderLookup.Provider registries) {
-        // networks
+        readNetworks(tag, registries);
+        readNodes(tag.getIntArray("networkByBlock"));
+        finishLoading();
+
+        networksUnsaved = true;
+        for (LongIterator it = networkByBlock.keySet().iterator(); it.hasNext();) {
+            markRegionUnsaved(it.nextLong());
+        }
+    }
+
+    /**
+     * Read the networks, but not their nodes. Nodes must then be read using
+     * {@link #readNodes}, followed by a single call to {@link #finishLoading}.
+     */
+    public void readNetworks(CompoundTag tag, HolderLookup.Provider registries) {
+        loadingNetworks = new Int2ObjectOpenHashMap<>();
+
         ListTag networksTag = tag.getList("networks", new CompoundTag().getId());
         for (Tag networkTag : networksTag) {
             PipeNetwork network = type.getNetworkCtor().apply(-1, null);
             network.manager = this;
             network.fromTag((CompoundTag) networkTag, registries);
             networks.add(network);
+            loadingNetworks.put(network.id, network);
         }
 
-        // networkByBlock and links
-        Map<Integer, PipeNetwork> networkIds = new HashMap<>();
-        for (PipeNetwork network : networks) {
-            networkIds.put(network.id, network);
-        }
-        int[] data = tag.getIntArray("networkByBlock");
+        nextNetworkId = tag.getInt("nextNetworkId");
+    }
+
+    /**
+     * Read nodes and links. Every entry is identified by five consecutive integers:
+     * x, y, z, network id, encoded links.
+     */
+    public void readNodes(int[] data) {
+        Preconditions.checkState(loadingNetworks != null, "Networks must be read before their nodes.");
+
         for (int i = 0; i < data.length / 5; i++) {
-            PipeNetwork network = networkIds.get(data[5 * i + 3]);
-            BlockPos pos = new BlockPos(data[5 * i], data[5 * i + 1], data[5 * i + 2]);
+            int networkId = data[5 * i + 3];
+            PipeNetwork network = loadingNetworks.get(networkId);
+            if (network == null) {
+                // The shard was saved but the network list wasn't, for example after a crash.
+                LOGGER.warn("Pipe network {} of type {} is missing, recreating it with default data.", networkId, type.getIdentifier());
+                network = type.getNetworkCtor().apply(networkId, null);
+                network.manager = this;
+                networks.add(network);
+                loadingNetworks.put(networkId, network);
+                nextNetworkId = Math.max(nextNetworkId, networkId + 1);
+                networksUnsaved = true;
+            }
+            long pos = BlockPos.asLong(data[5 * i], data[5 * i + 1], data[5 * i + 2]);
             networkByBlock.put(pos, network);
+            addToRegion(pos);
             network.setNode(pos, null);
-            links.put(pos, new HashSet<>(Arrays.asList(NbtHelper.decodeDirections((byte) data[5 * i + 4]))));
+            links.put(pos, (byte) data[5 * i + 4]);
         }
+    }
 
-        // nextNetworkId
-        nextNetworkId = tag.getInt("nextNetworkId");
+    public void finishLoading() {
+        // Drop networks without any node, which can happen if their nodes were never saved.
+        if (networks.removeIf(network -> network.getNodeCount() == 0)) {
+            networksUnsaved = true;
+        }
+        loadingNetworks = null;
         checkStateCoherence();
     }
 
-    public CompoundTag toTag(CompoundTag tag, HolderLookup.Provider registries) {
+    public CompoundTag writeNetworks(CompoundTag tag, HolderLookup.Provider registries) {
         // networks
         List<CompoundTag> networksTags = new ArrayList<>();
         for (PipeNetwork network : networks) {
@@ -382,31 +686,47 @@ public class PipeNetworkManager {
         networksTag.addAll(networksTags);
         tag.put("networks", networksTag);
 
-        // networkByBlock and links, every entry is identified by five consecutive
-        // integers: x, y, z, network id, encoded links
-        int[] networkByBlockData = new int[networkByBlock.size() * 5];
-        int i = 0;
-        for (Map.Entry<BlockPos, PipeNetwork> entry : networkByBlock.entrySet()) {
-            networkByBlockData[i++] = entry.getKey().getX();
-            networkByBlockData[i++] = entry.getKey().getY();
-            networkByBlockData[i++] = entry.getKey().getZ();
-            networkByBlockData[i++] = entry.getValue().id;
-            networkByBlockData[i++] = NbtHelper.encodeDirections(links.get(entry.getKey()));
-        }
-        tag.putIntArray("networkByBlock", networkByBlockData);
-
         // nextNetworkId
         tag.putInt("nextNetworkId", nextNetworkId);
-        checkStateCoherence();
+        networksUnsaved = false;
         return tag;
     }
 
+    /**
+     * Append the nodes and links of the given regions to {@code output}, in the
+     * format expected by {@link #readNodes}.
+     */
+    public void writeNodes(LongSet regions, Long2ObjectMap<IntArrayList> output) {
+        for (LongIterator regionIt = regions.iterator(); regionIt.hasNext();) {
+            long region = regionIt.nextLong();
+            LongSet positions = nodesByRegion.get(region);
+            if (positions == null) {
+                continue;
+            }
+            IntArrayList data = output.get(region);
+            if (data == null) {
+                data = new IntArrayList(5 * positions.size());
+                output.put(region, data);
+            }
+            for (LongIterator it = positions.iterator(); it.hasNext();) {
+                long pos = it.nextLong();
+                data.add(BlockPos.getX(pos));
+                data.add(BlockPos.getY(pos));
+                data.add(BlockPos.getZ(pos));
+                data.add(networkByBlock.get(pos).id);
+                data.add(links.get(pos));
+            }
+        }
+    }
+
     public PipeNetworkType getType() {
         return type;
     }
 
     public Set<Direction> getNodeLinks(BlockPos pos) {
-        return new HashSet<>(links.get(pos));
+        Set<Direction> result = EnumSet.noneOf(Direction.class);
+        Collections.addAll(result, NbtHelper.decodeDirections(links.get(pos.asLong())));
+        return result;
     }
 
     /**
@@ -418,18 +738,25 @@ public class PipeNetworkManager {
         }
 
         customAssert(networkByBlock.keySet().equals(links.keySet()));
-        for (Map.Entry<BlockPos, PipeNetwork> entry : networkByBlock.entrySet()) {
+        customAssert(nodesByRegion.values().stream().mapToInt(LongSet::size).sum() == networkByBlock.size());
+        for (var entry : nodesByRegion.long2ObjectEntrySet()) {
+            for (LongIterator it = entry.getValue().iterator(); it.hasNext();) {
+                long pos = it.nextLong();
+                customAssert(getRegion(pos) == entry.getLongKey() && networkByBlock.containsKey(pos));
+            }
+        }
+        for (var entry : networkByBlock.long2ObjectEntrySet()) {
             customAssert(networks.contains(entry.getValue()));
-            PipeNetworkNode node = entry.getValue().getNode(entry.getKey());
+            PipeNetworkNode node = entry.getValue().getRawNodeMap().get(entry.getLongKey());
             customAssert(node == null || node.network == entry.getValue());
         }
-        for (Map.Entry<BlockPos, Set<Direction>> entry : links.entrySet()) {
-            customAssert(entry.getValue() != null);
+        for (var entry : links.long2ByteEntrySet()) {
+            customAssert((entry.getByteValue() & ~0b111111) == 0);
         }
         for (PipeNetwork network : networks) {
-            for (Map.Entry<BlockPos, PipeNetworkNode> entry : network.getRawNodeMap().entrySet()) {
+            for (var entry : network.getRawNodeMap().long2ObjectEntrySet()) {
                 customAssert(entry.getValue() == null || entry.getValue().network == network);
-                customAssert(networkByBlock.get(entry.getKey()) == network);
+                customAssert(networkByBlock.get(entry.getLongKey()) == network);
             }
         }
     }
@@ -75,6 +75,11 @@ public abstract class PipeNetworkNode {
         return network.manager;
     }
 
+    @Nullable
+    public final PipeNetworkTelemetry getNetworkTelemetry() {
+        return network.getTelemetry();
+    }
+
     public CompoundTag writeCustomData(HolderLookup.Provider registries) {
         return new CompoundTag();
     }
@@ -0,0 +1,222 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Azercoco & Technici4n
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package aztech.modern_industrialization.pipes.api;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.lang.management.ManagementFactory;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Cost and activity of the last {@link #CAPACITY} ticks of a network, kept in a
+ * ring buffer. The manager measures the time and allocations of each tick, and
+ * the network reports what it moved with {@link #addMoved} or that it slept
+ * with {@link #markSleeping}.
+ */
+public final class PipeNetworkTelemetry {
+    public static final int CAPACITY = 100;
+
+    private static final byte IDLE = 0, ACTIVE = 1, SLEEPING = 2;
+
+    /**
+     * Used to measure the bytes allocated by a tick, {@code null} if the JVM doesn't support it.
+     */
+    @Nullable
+    private static final com.sun.management.ThreadMXBean THREAD_BEAN = findThreadBean();
+
+    private final long[] tickNanos = new long[CAPACITY];
+    private final long[] allocatedBytes = new long[CAPACITY];
+    private final int[] nodeCounts = new int[CAPACITY];
+    private final int[] endpointCounts = new int[CAPACITY];
+    private final long[] movedAmounts = new long[CAPACITY];
+    private final byte[] states = new byte[CAPACITY];
+    /**
+     * Index of the next entry to write.
+     */
+    private int head = 0;
+    private int size = 0;
+    // State of the current tick
+    private long pendingMoved;
+    private byte pendingState;
+
+    @Nullable
+    private static com.sun.management.ThreadMXBean findThreadBean() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean && bean.isThreadAllocatedMemorySupported()
+                && bean.isThreadAllocatedMemoryEnabled()) {
+            return bean;
+        }
+        return null;
+    }
+
+    public static boolean isAllocationTrackingSupported() {
+        return THREAD_BEAN != null;
+    }
+
+    /**
+     * @return The bytes allocated so far by the current thread, or 0 if allocation tracking is not supported.
+     */
+    static long getCurrentThreadAllocatedBytes() {
+        return THREAD_BEAN == null ? 0 : THREAD_BEAN.getCurrentThreadAllocatedBytes();
+    }
+
+    void beginTick() {
+        pendingMoved = 0;
+        pendingState = IDLE;
+    }
+
+    void endTick(long nanos, long allocated, int nodeCount, int endpointCount) {
+        tickNanos[head] = nanos;
+        allocatedBytes[head] = allocated;
+        nodeCounts[head] = nodeCount;
+        endpointCounts[head] = endpointCount;
+        movedAmounts[head] = pendingMoved;
+        states[head] = pendingState;
+        head = (head + 1) % CAPACITY;
+        size = Math.min(size + 1, CAPACITY);
+    }
+
+    public void addMoved(long amount) {
+        if (amount > 0) {
+            pendingMoved += amount;
+            pendingState = ACTIVE;
+        }
+    }
+
+    public void markSleeping() {
+        pendingState = SLEEPING;
+    }
+
+    /**
+     * @return The number of recorded ticks.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The index in the arrays of the i-th recorded tick, from oldest to newest.
+     */
+    private int index(int i) {
+        return (head - size + i + CAPACITY) % CAPACITY;
+    }
+
+    public long getAverageTickNanos() {
+        return size == 0 ? 0 : getTotalTickNanos() / size;
+    }
+
+    private long getTotalTickNanos() {
+        long total = 0;
+        for (int i = 0; i < size; ++i) {
+            total += tickNanos[index(i)];
+        }
+        return total;
+    }
+
+    public long getMaxTickNanos() {
+        long max = 0;
+        for (int i = 0; i < size; ++i) {
+            max = Math.max(max, tickNanos[index(i)]);
+        }
+        return max;
+    }
+
+    public long getAverageAllocatedBytes() {
+        if (size == 0) {
+            return 0;
+        }
+        long total = 0;
+        for (int i = 0; i < size; ++i) {
+            total += allocatedBytes[index(i)];
+        }
+        return total / size;
+    }
+
+    public long getAverageMoved() {
+        if (size == 0) {
+            return 0;
+        }
+        long total = 0;
+        for (int i = 0; i < size; ++i) {
+            total += movedAmounts[index(i)];
+        }
+        return total / size;
+    }
+
+    public int getLastNodeCount() {
+        return size == 0 ? 0 : nodeCounts[index(size - 1)];
+    }
+
+    public int getLastEndpointCount() {
+        return size == 0 ? 0 : endpointCounts[index(size - 1)];
+    }
+
+    public int getIdleTicks() {
+        return countState(IDLE);
+    }
+
+    public int getSleepingTicks() {
+        return countState(SLEEPING);
+    }
+
+    private int countState(byte state) {
+        int count = 0;
+        for (int i = 0; i < size; ++i) {
+            if (states[index(i)] == state) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return The recorded ticks, from oldest to newest.
+     */
+    public JsonObject toJson() {
+        JsonArray ticks = new JsonArray();
+        for (int i = 0; i < size; ++i) {
+            int index = index(i);
+            JsonObject tick = new JsonObject();
+            tick.addProperty("nanos", tickNanos[index]);
+            tick.addProperty("allocatedBytes", allocatedBytes[index]);
+            tick.addProperty("nodes", nodeCounts[index]);
+            tick.addProperty("endpoints", endpointCounts[index]);
+            tick.addProperty("moved", movedAmounts[index]);
+            tick.addProperty("state", switch (states[index]) {
+            case ACTIVE -> "active";
+            case SLEEPING -> "sleeping";
+            default -> "idle";
+            });
+            ticks.add(tick);
+        }
+        JsonObject json = new JsonObject();
+        json.addProperty("averageTickNanos", getAverageTickNanos());
+        json.addProperty("maxTickNanos", getMaxTickNanos());
+        json.addProperty("averageAllocatedBytes", getAverageAllocatedBytes());
+        json.addProperty("averageMoved", getAverageMoved());
+        json.addProperty("idleTicks", getIdleTicks());
+        json.addProperty("sleepingTicks", getSleepingTicks());
+        json.add("ticks", ticks);
+        return json;
+    }
+}
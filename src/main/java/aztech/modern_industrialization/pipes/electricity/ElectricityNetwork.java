@@ -23,19 +23,62 @@
  */
 package aztech.modern_industrialization.pipes.electricity;
 
+import aztech.modern_industrialization.MIConfig;
 import aztech.modern_industrialization.api.energy.CableTier;
 import aztech.modern_industrialization.api.energy.MIEnergyStorage;
+import aztech.modern_industrialization.machines.blockentities.TransformerMachineBlockEntity;
+import aztech.modern_industrialization.pipes.PipeSleepTracker;
 import aztech.modern_industrialization.pipes.PipeStatsCollector;
 import aztech.modern_industrialization.pipes.api.PipeNetwork;
 import aztech.modern_industrialization.pipes.api.PipeNetworkData;
-import java.util.*;
+import aztech.modern_industrialization.pipes.api.PipeNetworkNode;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.objects.Reference2ObjectLinkedOpenHashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import net.minecraft.core.BlockPos;
 import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.ChunkPos;
+import org.jetbrains.annotations.Nullable;
 
 public class ElectricityNetwork extends PipeNetwork {
-    private static final List<MIEnergyStorage> STORAGES_CACHE = new ArrayList<>();
+    private static final EnergyTransferPlanner PLANNER = new EnergyTransferPlanner();
 
     final CableTier tier;
     final PipeStatsCollector stats = new PipeStatsCollector();
+    private final PipeSleepTracker sleep = new PipeSleepTracker();
+    /**
+     * Energy stored in the ticking nodes, or null if it needs to be rebuilt in {@link #prepareTick}.
+     */
+    @Nullable
+    private EnergyLump lump;
+    /**
+     * Chunks of the ticking nodes, valid if {@link #lump} is not null.
+     */
+    private final LongSet lumpChunks = new LongOpenHashSet();
+    /**
+     * Deduplicated storages adjacent to the ticking nodes, or null if they need to be rebuilt.
+     */
+    private MIEnergyStorage @Nullable [] endpoints;
+    /**
+     * Whether the endpoints were built for {@link EnergyGrid}, i.e. without the transformers that take energy from this network.
+     */
+    private boolean gridEndpoints;
+    /**
+     * Transformers that take energy from this network, only computed for {@link EnergyGrid}.
+     */
+    final List<TransformerMachineBlockEntity> transformerInputs = new ArrayList<>();
+    /**
+     * Transformers that give energy to this network, only computed for {@link EnergyGrid}.
+     */
+    final List<TransformerMachineBlockEntity> transformerOutputs = new ArrayList<>();
+    /**
+     * Amount transferred by the last tick, used by {@link EnergyGrid} to respect the max transfer of the network.
+     */
+    private long lastTransferred;
 
     public ElectricityNetwork(int id, PipeNetworkData data, CableTier tier) {
         super(id, data == null ? new ElectricityNetworkData() : data);
@@ -43,87 +86,266 @@ public class ElectricityNetwork extends PipeNetwork {
     }
 
     @Override
-    public void tick(ServerLevel world) {
-        // Gather targets
-        List<MIEnergyStorage> storages = STORAGES_CACHE;
-        long networkAmount = 0;
-        int loadedNodeCount = 0;
-        for (var entry : iterateTickingNodes()) {
+    protected void onTickingNodesChanged() {
+        dissolveLump();
+    }
+
+    @Override
+    protected void onSetNode(@Nullable PipeNetworkNode node) {
+        dissolveLump();
+    }
+
+    @Override
+    public void onRemove() {
+        dissolveLump();
+    }
+
+    /**
+     * Write the share of each node back to the node, and rebuild the lump in the next {@link #prepareTick}.
+     */
+    private void dissolveLump() {
+        invalidateEndpoints();
+        if (lump != null) {
+            lump.materialise();
+            lump = null;
+        }
+    }
+
+    /**
+     * Rebuild the endpoints in the next tick, must be called when a connection or a neighbor of the network changes.
+     */
+    void invalidateEndpoints() {
+        endpoints = null;
+        sleep.wake();
+    }
+
+    @Override
+    public int getEndpointCount() {
+        return endpoints == null ? 0 : endpoints.length;
+    }
+
+    @Override
+    public boolean isSleeping() {
+        return sleep.isSleeping();
+    }
+
+    @Override
+    public void prepareTick() {
+        var tickingNodes = iterateTickingNodes();
+        if (lump != null) {
+            return;
+        }
+
+        EnergyLump newLump = new EnergyLump();
+        lumpChunks.clear();
+        for (var entry : tickingNodes) {
             ElectricityNetworkNode node = (ElectricityNetworkNode) entry.getNode();
-            node.appendAttributes(world, entry.getPos(), tier, storages);
-            networkAmount += node.eu;
-            loadedNodeCount++;
+            var oldLump = node.lump;
+            if (oldLump != null) {
+                // Node that was moved from another network
+                oldLump.materialise();
+            }
+            newLump.add(node);
+            lumpChunks.add(ChunkPos.asLong(entry.getPos()));
+        }
+        lump = newLump;
+    }
+
+    private void rebuildEndpoints(ServerLevel world) {
+        Map<MIEnergyStorage, BlockPos> storages = new Reference2ObjectLinkedOpenHashMap<>();
+        for (var entry : iterateTickingNodes()) {
+            ((ElectricityNetworkNode) entry.getNode()).collectEndpoints(world, entry.getPos(), storages);
+        }
+
+        gridEndpoints = MIConfig.getConfig().crossNetworkEnergyFlow;
+        transformerInputs.clear();
+        transformerOutputs.clear();
+        List<MIEnergyStorage> newEndpoints = new ArrayList<>(storages.size());
+        for (var entry : storages.entrySet()) {
+            MIEnergyStorage storage = entry.getKey();
+            if (gridEndpoints && world.getBlockEntity(entry.getValue()) instanceof TransformerMachineBlockEntity transformer) {
+                if (storage.canReceive()) {
+                    // The grid moves energy through the transformer directly
+                    transformerInputs.add(transformer);
+                    continue;
+                } else if (storage.canExtract()) {
+                    // Keep the transformer as an endpoint to drain its buffer
+                    transformerOutputs.add(transformer);
+                }
+            }
+            newEndpoints.add(storage);
         }
+        endpoints = newEndpoints.toArray(new MIEnergyStorage[0]);
+    }
 
-        // Filter targets
-        storages.removeIf(s -> !s.canConnect(tier));
+    @Override
+    public void tick(ServerLevel world) {
+        if (lump == null) {
+            prepareTick();
+        }
+        if (sleep.shouldSkipTick()) {
+            stats.addValue(0);
+            reportSleeping();
+            lastTransferred = 0;
+            return;
+        }
+
+        // Gather targets
+        if (endpoints == null || gridEndpoints != MIConfig.getConfig().crossNetworkEnergyFlow) {
+            rebuildEndpoints(world);
+        }
+        EnergyTransferPlanner planner = PLANNER;
+        for (MIEnergyStorage endpoint : endpoints) {
+            if (endpoint.canConnect(tier)) {
+                planner.add(endpoint);
+            }
+        }
 
         // Do the transfer
-        long networkCapacity = loadedNodeCount * tier.getMaxTransfer();
+        long networkAmount = lump.amount;
+        long networkCapacity = lump.size() * tier.getMaxTransfer();
         long extractMaxAmount = Math.min(tier.getMaxTransfer(), networkCapacity - networkAmount);
-        long extracted = transferForTargets(MIEnergyStorage::extract, storages, extractMaxAmount);
+        long extracted = planner.transfer(EnergyTransferPlanner.TransferOperation.EXTRACT, extractMaxAmount);
         networkAmount += extracted;
 
         long insertMaxAmount = Math.min(tier.getMaxTransfer(), networkAmount);
-        long inserted = transferForTargets(MIEnergyStorage::receive, storages, insertMaxAmount);
+        long inserted = planner.transfer(EnergyTransferPlanner.TransferOperation.RECEIVE, insertMaxAmount);
         networkAmount -= inserted;
 
-        stats.addValue(Math.max(extracted, inserted));
+        lastTransferred = Math.max(extracted, inserted);
+        stats.addValue(lastTransferred);
+        reportMoved(lastTransferred);
+        sleep.onTickDone(extracted > 0 || inserted > 0);
 
-        // Split energy evenly across the nodes
-        for (var entry : iterateTickingNodes()) {
-            ElectricityNetworkNode electricityNode = (ElectricityNetworkNode) entry.getNode();
-            electricityNode.eu = networkAmount / loadedNodeCount;
-            networkAmount -= electricityNode.eu;
-            --loadedNodeCount;
-        }
+        setAmount(networkAmount);
 
         // Very important to clear the static caches
-        storages.clear();
+        planner.clear();
+    }
+
+    private void setAmount(long networkAmount) {
+        // The energy is split evenly across the nodes, only the chunks need to be saved
+        if (lump.amount != networkAmount) {
+            lump.amount = networkAmount;
+            for (LongIterator chunkIt = lumpChunks.iterator(); chunkIt.hasNext();) {
+                manager.markChunkUnsaved(chunkIt.nextLong());
+            }
+        }
     }
 
     /**
-     * Perform a transfer operation across a list of targets. Will not mutate the
-     * list. Does not check for the network's max transfer rate specifically.
+     * Whether this network ticked with endpoints built for {@link EnergyGrid}.
      */
-    private static long transferForTargets(TransferOperation operation, List<MIEnergyStorage> targets, long maxAmount) {
-        // Build target list
-        List<EnergyTarget> sortableTargets = new ArrayList<>(targets.size());
-        for (var target : targets) {
-            sortableTargets.add(new EnergyTarget(target));
+    boolean isReadyForGrid() {
+        return lump != null && endpoints != null && gridEndpoints;
+    }
+
+    /**
+     * @return How much more energy this network can carry this tick.
+     */
+    long getRemainingTransfer() {
+        return Math.max(0, tier.getMaxTransfer() - lastTransferred);
+    }
+
+    long getGridSupply() {
+        return Math.min(lump.amount, getRemainingTransfer());
+    }
+
+    long getGridDemand() {
+        long demand = 0;
+        for (MIEnergyStorage endpoint : endpoints) {
+            if (endpoint.canConnect(tier)) {
+                demand += endpoint.receive(getRemainingTransfer(), true);
+                if (demand >= getRemainingTransfer()) {
+                    return getRemainingTransfer();
+                }
+            }
         }
-        // Shuffle for better transfer on average
-        Collections.shuffle(sortableTargets);
-        // Simulate the transfer for every target
-        for (EnergyTarget target : sortableTargets) {
-            target.simulationResult = operation.transfer(target.target, maxAmount, true);
+        return demand;
+    }
+
+    /**
+     * Take energy that was planned by {@link EnergyGrid} from this network.
+     */
+    void takeGridEnergy(long amount) {
+        if (amount > 0) {
+            setAmount(lump.amount - amount);
+            sleep.wake();
         }
-        // Sort from low to high result
-        sortableTargets.sort(Comparator.comparingLong(t -> t.simulationResult));
-        // Actually perform the transfer
-        long transferredAmount = 0;
-        for (int i = 0; i < sortableTargets.size(); ++i) {
-            EnergyTarget target = sortableTargets.get(i);
-            int remainingTargets = sortableTargets.size() - i;
-            long remainingAmount = maxAmount - transferredAmount;
-            long targetMaxAmount = remainingAmount / remainingTargets;
+    }
 
-            transferredAmount += operation.transfer(target.target, targetMaxAmount, false);
+    /**
+     * Give energy that was planned by {@link EnergyGrid} to the endpoints of this network, storing what they don't accept.
+     *
+     * @return The amount that could neither be received nor stored.
+     */
+    long giveGridEnergy(long amount) {
+        if (amount <= 0) {
+            return amount;
+        }
+        EnergyTransferPlanner planner = PLANNER;
+        for (MIEnergyStorage endpoint : endpoints) {
+            if (endpoint.canConnect(tier)) {
+                planner.add(endpoint);
+            }
         }
-        return transferredAmount;
+        long remaining = amount - planner.transfer(EnergyTransferPlanner.TransferOperation.RECEIVE, amount);
+        planner.clear();
+        sleep.wake();
+        return remaining - storeGridEnergy(remaining);
     }
 
-    @FunctionalInterface
-    private interface TransferOperation {
-        long transfer(MIEnergyStorage transferable, long maxAmount, boolean simulate);
+    /**
+     * Store energy in this network, up to its capacity.
+     *
+     * @return The amount that was stored.
+     */
+    long storeGridEnergy(long amount) {
+        long stored = Math.min(amount, lump.size() * tier.getMaxTransfer() - lump.amount);
+        if (stored > 0) {
+            setAmount(lump.amount + stored);
+        }
+        return stored;
     }
 
-    private static class EnergyTarget {
-        final MIEnergyStorage target;
-        long simulationResult;
+    /**
+     * Energy of the ticking nodes, shared evenly between them. Each node reads its share from the lump,
+     * and the shares are written back to the nodes when the lump is dissolved.
+     */
+    static final class EnergyLump {
+        private final List<ElectricityNetworkNode> nodes = new ArrayList<>();
+        private long amount = 0;
+        private boolean materialised = false;
+
+        private void add(ElectricityNetworkNode node) {
+            node.lump = this;
+            node.lumpIndex = nodes.size();
+            nodes.add(node);
+            amount += node.eu;
+        }
+
+        private long size() {
+            return nodes.size();
+        }
+
+        long getShare(int index) {
+            long share = amount / nodes.size();
+            return index < amount % nodes.size() ? share + 1 : share;
+        }
 
-        EnergyTarget(MIEnergyStorage target) {
-            this.target = target;
+        /**
+         * Write the shares back to the nodes. Can be called by another network if some nodes were moved to it.
+         */
+        void materialise() {
+            if (materialised) {
+                return;
+            }
+            materialised = true;
+            for (int i = 0; i < nodes.size(); ++i) {
+                var node = nodes.get(i);
+                node.eu = getShare(i);
+                node.lump = null;
+            }
         }
     }
 }
@@ -33,6 +33,7 @@ import aztech.modern_industrialization.util.NbtHelper;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import net.minecraft.core.BlockPos;
 import net.minecraft.core.Direction;
 import net.minecraft.core.HolderLookup;
@@ -42,28 +43,51 @@ import net.minecraft.world.entity.player.Player;
 import net.minecraft.world.level.Level;
 import net.neoforged.neoforge.capabilities.BlockCapabilityCache;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 public class ElectricityNetworkNode extends PipeNetworkNode {
     private List<Direction> connections = new ArrayList<>();
     private final List<BlockCapabilityCache<MIEnergyStorage, @NotNull Direction>> caches = new ArrayList<>();
+    /**
+     * Energy of this node, only valid if {@link #lump} is null.
+     */
     long eu = 0;
+    /**
+     * The lump currently holding the energy of this node, if any.
+     */
+    @Nullable
+    ElectricityNetwork.EnergyLump lump = null;
+    int lumpIndex;
 
-    public void appendAttributes(ServerLevel world, BlockPos pos, CableTier cableTier, List<MIEnergyStorage> storages) {
+    /**
+     * Add the storage of each connection of this node, together with its position.
+     */
+    void collectEndpoints(ServerLevel world, BlockPos pos, Map<MIEnergyStorage, BlockPos> storages) {
         if (caches.size() != connections.size()) {
             caches.clear();
             for (Direction direction : connections) {
-                caches.add(BlockCapabilityCache.create(EnergyApi.SIDED, world, pos.relative(direction), direction.getOpposite()));
+                caches.add(BlockCapabilityCache.create(EnergyApi.SIDED, world, pos.relative(direction), direction.getOpposite(),
+                        () -> connections.contains(direction), this::invalidateNetworkEndpoints));
             }
         }
         for (int i = 0; i < connections.size(); ++i) {
             MIEnergyStorage storage = caches.get(i).getCapability();
-            if (storage == null || !storage.canConnect(cableTier)) {
-                continue;
+            if (storage != null) {
+                storages.putIfAbsent(storage, pos.relative(connections.get(i)));
             }
-            storages.add(storage);
         }
     }
 
+    private void invalidateNetworkEndpoints() {
+        if (network instanceof ElectricityNetwork electricityNetwork) {
+            electricityNetwork.invalidateEndpoints();
+        }
+    }
+
+    long getEu() {
+        return lump != null ? lump.getShare(lumpIndex) : eu;
+    }
+
     @Override
     public void buildInitialConnections(Level world, BlockPos pos) {
         for (Direction direction : Direction.values()) {
@@ -75,6 +99,8 @@ public class ElectricityNetworkNode extends PipeNetworkNode {
 
     @Override
     public void updateConnections(Level world, BlockPos pos) {
+        // A neighbor changed, maybe a transfer is possible now.
+        invalidateNetworkEndpoints();
         // We don't connect by default, so we just have to remove connections that have
         // become unavailable
         for (int i = 0; i < connections.size();) {
@@ -106,6 +132,7 @@ public class ElectricityNetworkNode extends PipeNetworkNode {
             if (connections.get(i) == direction) {
                 connections.remove(i);
                 caches.clear();
+                invalidateNetworkEndpoints();
                 return;
             }
         }
@@ -123,13 +150,14 @@ public class ElectricityNetworkNode extends PipeNetworkNode {
         if (canConnect(world, pos, direction)) {
             connections.add(direction);
             caches.clear();
+            invalidateNetworkEndpoints();
         }
     }
 
     @Override
     public CompoundTag toTag(CompoundTag tag, HolderLookup.Provider registries) {
         tag.putByte("connections", NbtHelper.encodeDirections(connections));
-        tag.putLong("eu", eu);
+        tag.putLong("eu", getEu());
         return tag;
     }
 
@@ -154,7 +182,7 @@ public class ElectricityNetworkNode extends PipeNetworkNode {
         long stored = 0, capacity = 0;
         for (var posNode : network.iterateTickingNodes()) {
             var node = (ElectricityNetworkNode) posNode.getNode();
-            stored += node.eu;
+            stored += node.getEu();
             capacity += getMaxTransfer(); // max transfer is also max eu capacity
         }
         return new InGameInfo(stored, capacity, ((ElectricityNetwork) network).stats.getValue(), getMaxTransfer());
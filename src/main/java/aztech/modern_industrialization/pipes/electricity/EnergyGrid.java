@@ -0,0 +1,116 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Azercoco & Technici4n
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package aztech.modern_industrialization.pipes.electricity;
+
+import aztech.modern_industrialization.MIConfig;
+import aztech.modern_industrialization.machines.blockentities.TransformerMachineBlockEntity;
+import aztech.modern_industrialization.pipes.api.PipeNetwork;
+import aztech.modern_industrialization.pipes.api.PipeNetworkManager;
+import aztech.modern_industrialization.pipes.api.PipeNetworkType;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.objects.Reference2ObjectOpenHashMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Moves energy between electricity networks connected by transformers, when
+ * {@link MIConfig#crossNetworkEnergyFlow} is enabled. Runs after all the
+ * networks of a level ticked, and sends the energy that they could not use
+ * locally to the networks that still need some, through the transformers and
+ * without going through their buffers.
+ */
+public final class EnergyGrid {
+    private static final EnergyGridSolver SOLVER = new EnergyGridSolver();
+    private static final Comparator<ElectricityNetwork> NETWORK_ORDER = Comparator.comparingInt(ElectricityNetwork::getId);
+
+    private EnergyGrid() {
+    }
+
+    public static void tick(Map<PipeNetworkType, PipeNetworkManager> managers) {
+        if (!MIConfig.getConfig().crossNetworkEnergyFlow) {
+            return;
+        }
+
+        // Collect networks in a deterministic order
+        List<ElectricityNetwork> networks = new ArrayList<>();
+        for (PipeNetworkType type : managers.keySet().stream().sorted().toList()) {
+            int start = networks.size();
+            for (PipeNetwork network : managers.get(type).getNetworks()) {
+                if (network instanceof ElectricityNetwork electricityNetwork && electricityNetwork.isReadyForGrid()) {
+                    networks.add(electricityNetwork);
+                }
+            }
+            networks.subList(start, networks.size()).sort(NETWORK_ORDER);
+        }
+
+        // Networks on the output side of each transformer
+        Map<TransformerMachineBlockEntity, IntList> outputNetworks = new Reference2ObjectOpenHashMap<>();
+        for (int i = 0; i < networks.size(); ++i) {
+            for (var transformer : networks.get(i).transformerOutputs) {
+                outputNetworks.computeIfAbsent(transformer, t -> new IntArrayList()).add(i);
+            }
+        }
+        if (outputNetworks.isEmpty()) {
+            return;
+        }
+
+        EnergyGridSolver solver = SOLVER;
+        solver.clear();
+        for (ElectricityNetwork network : networks) {
+            solver.addNetwork(network.getRemainingTransfer(), network.getGridSupply(), network.getGridDemand());
+        }
+        for (int i = 0; i < networks.size(); ++i) {
+            ElectricityNetwork from = networks.get(i);
+            for (var transformer : from.transformerInputs) {
+                IntList outputs = outputNetworks.get(transformer);
+                if (outputs == null || transformer.isRemoved()) {
+                    continue;
+                }
+                for (int j = 0; j < outputs.size(); ++j) {
+                    ElectricityNetwork to = networks.get(outputs.getInt(j));
+                    solver.addLink(i, outputs.getInt(j), Math.min(from.tier.getMaxTransfer(), to.tier.getMaxTransfer()));
+                }
+            }
+        }
+        if (solver.solve() == 0) {
+            return;
+        }
+
+        // Move the energy. What the consumers don't accept is stored in their network,
+        // and as a last resort returned to the networks it came from.
+        for (int i = 0; i < networks.size(); ++i) {
+            networks.get(i).takeGridEnergy(solver.getSupplied(i));
+        }
+        long leftover = 0;
+        for (int i = 0; i < networks.size(); ++i) {
+            leftover += networks.get(i).giveGridEnergy(solver.getDemanded(i));
+        }
+        for (int i = 0; i < networks.size() && leftover > 0; ++i) {
+            leftover -= networks.get(i).storeGridEnergy(Math.min(leftover, solver.getSupplied(i)));
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Azercoco & Technici4n
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package aztech.modern_industrialization.pipes.electricity;
+
+import java.util.Arrays;
+
+/**
+ * Computes how much energy can flow between electricity networks connected by
+ * transformers, as a maximum flow problem:
+ * <ul>
+ * <li>Each network can supply and demand some energy, and can carry at most its
+ * throughput of energy per tick.</li>
+ * <li>Each link carries energy from one network to another, up to its capacity.</li>
+ * </ul>
+ * Augmenting paths are found with breadth-first searches that visit the edges in
+ * a fixed order, so the result only depends on the order in which networks and
+ * links were added.
+ * Shorter paths are used first, meaning that energy stays in its own network
+ * whenever possible.
+ */
+public final class EnergyGridSolver {
+    private static final int SOURCE = 0, SINK = 1;
+
+    private int networkCount = 0;
+    private long[] throughputs = new long[16];
+    private long[] supplies = new long[16];
+    private long[] demands = new long[16];
+    private int linkCount = 0;
+    private int[] linkFrom = new int[16];
+    private int[] linkTo = new int[16];
+    private long[] linkCapacities = new long[16];
+
+    // Flow graph: the source, the sink, then an input and an output vertex per network
+    private int edgeCount = 0;
+    private int[] head = new int[0];
+    private int[] next = new int[0];
+    private int[] to = new int[0];
+    private long[] residual = new long[0];
+    // Scratch arrays for the breadth-first search
+    private int[] parentEdge = new int[0];
+    private int[] queue = new int[0];
+
+    /**
+     * @return the index of the new network.
+     */
+    public int addNetwork(long throughput, long supply, long demand) {
+        if (networkCount == throughputs.length) {
+            int newLength = 2 * networkCount;
+            throughputs = Arrays.copyOf(throughputs, newLength);
+            supplies = Arrays.copyOf(supplies, newLength);
+            demands = Arrays.copyOf(demands, newLength);
+        }
+        throughputs[networkCount] = throughput;
+        supplies[networkCount] = supply;
+        demands[networkCount] = demand;
+        return networkCount++;
+    }
+
+    /**
+     * @return the index of the new link.
+     */
+    public int addLink(int from, int to, long capacity) {
+        if (linkCount == linkFrom.length) {
+            int newLength = 2 * linkCount;
+            linkFrom = Arrays.copyOf(linkFrom, newLength);
+            linkTo = Arrays.copyOf(linkTo, newLength);
+            linkCapacities = Arrays.copyOf(linkCapacities, newLength);
+        }
+        linkFrom[linkCount] = from;
+        linkTo[linkCount] = to;
+        linkCapacities[linkCount] = capacity;
+        return linkCount++;
+    }
+
+    public int getNetworkCount() {
+        return networkCount;
+    }
+
+    /**
+     * Remove all networks and links.
+     */
+    public void clear() {
+        networkCount = 0;
+        linkCount = 0;
+        edgeCount = 0;
+    }
+
+    /**
+     * Compute the maximum flow. The results can then be read with
+     * {@link #getSupplied}, {@link #getDemanded} and {@link #getLinkFlow}.
+     *
+     * @return the total amount of energy that flows from suppliers to consumers.
+     */
+    public long solve() {
+        buildGraph();
+
+        long totalFlow = 0;
+        while (true) {
+            long flow = augment();
+            if (flow == 0) {
+                return totalFlow;
+            }
+            totalFlow += flow;
+        }
+    }
+
+    /**
+     * @return how much of the supply of a network is used.
+     */
+    public long getSupplied(int network) {
+        return flow(supplyEdge(network));
+    }
+
+    /**
+     * @return how much of the demand of a network is satisfied.
+     */
+    public long getDemanded(int network) {
+        return flow(demandEdge(network));
+    }
+
+    /**
+     * @return how much energy flows through a link.
+     */
+    public long getLinkFlow(int link) {
+        return flow(linkEdge(link));
+    }
+
+    // Edges are added in this order, each followed by its reverse edge.
+    private int supplyEdge(int network) {
+        return 6 * network;
+    }
+
+    private int throughputEdge(int network) {
+        return 6 * network + 2;
+    }
+
+    private int demandEdge(int network) {
+        return 6 * network + 4;
+    }
+
+    private int linkEdge(int link) {
+        return 6 * networkCount + 2 * link;
+    }
+
+    private long flow(int edge) {
+        // The flow through an edge is the residual capacity of its reverse edge.
+        return residual[edge ^ 1];
+    }
+
+    private static int inputVertex(int network) {
+        return 2 + 2 * network;
+    }
+
+    private static int outputVertex(int network) {
+        return 3 + 2 * network;
+    }
+
+    private void buildGraph() {
+        int vertexCount = 2 + 2 * networkCount;
+        int maxEdges = 2 * (3 * networkCount + linkCount);
+        if (head.length < vertexCount) {
+            head = new int[vertexCount];
+            parentEdge = new int[vertexCount];
+            queue = new int[vertexCount];
+        }
+        if (to.length < maxEdges) {
+            next = new int[maxEdges];
+            to = new int[maxEdges];
+            residual = new long[maxEdges];
+        }
+        Arrays.fill(head, 0, vertexCount, -1);
+        edgeCount = 0;
+
+        for (int i = 0; i < networkCount; ++i) {
+            addEdge(SOURCE, inputVertex(i), supplies[i]);
+            addEdge(inputVertex(i), outputVertex(i), throughputs[i]);
+            addEdge(outputVertex(i), SINK, demands[i]);
+        }
+        for (int i = 0; i < linkCount; ++i) {
+            addEdge(outputVertex(linkFrom[i]), inputVertex(linkTo[i]), linkCapacities[i]);
+        }
+    }
+
+    private void addEdge(int from, int target, long capacity) {
+        // Forward edge
+        to[edgeCount] = target;
+        residual[edgeCount] = capacity;
+        next[edgeCount] = head[from];
+        head[from] = edgeCount++;
+        // Reverse edge
+        to[edgeCount] = from;
+        residual[edgeCount] = 0;
+        next[edgeCount] = head[target];
+        head[target] = edgeCount++;
+    }
+
+    /**
+     * Find a shortest augmenting path and push as much flow as possible through it.
+     *
+     * @return the amount of flow that was pushed, or 0 if there is no augmenting path.
+     */
+    private long augment() {
+        int vertexCount = 2 + 2 * networkCount;
+        Arrays.fill(parentEdge, 0, vertexCount, -1);
+        int queueStart = 0, queueEnd = 0;
+        queue[queueEnd++] = SOURCE;
+
+        search: while (queueStart < queueEnd) {
+            int vertex = queue[queueStart++];
+            for (int edge = head[vertex]; edge != -1; edge = next[edge]) {
+                int target = to[edge];
+                if (residual[edge] > 0 && target != SOURCE && parentEdge[target] == -1) {
+                    parentEdge[target] = edge;
+                    if (target == SINK) {
+                        break search;
+                    }
+                    queue[queueEnd++] = target;
+                }
+            }
+        }
+        if (parentEdge[SINK] == -1) {
+            return 0;
+        }
+
+        long flow = Long.MAX_VALUE;
+        for (int vertex = SINK; vertex != SOURCE; vertex = to[parentEdge[vertex] ^ 1]) {
+            flow = Math.min(flow, residual[parentEdge[vertex]]);
+        }
+        for (int vertex = SINK; vertex != SOURCE; vertex = to[parentEdge[vertex] ^ 1]) {
+            residual[parentEdge[vertex]] -= flow;
+            residual[parentEdge[vertex] ^ 1] += flow;
+        }
+        return flow;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Azercoco & Technici4n
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package aztech.modern_industrialization.pipes.electricity;
+
+import aztech.modern_industrialization.api.energy.MIEnergyStorage;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntComparator;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Distributes energy across the storages of an electricity network. All the
+ * buffers are reused from one tick to the next, so a transfer doesn't allocate.
+ */
+class EnergyTransferPlanner {
+    private MIEnergyStorage[] targets = new MIEnergyStorage[16];
+    private int targetCount = 0;
+    // Scratch arrays for transfer
+    private long[] simulationResults = new long[16];
+    private int[] order = new int[16];
+    private final IntComparator bySimulationResult = (a, b) -> Long.compare(simulationResults[a], simulationResults[b]);
+
+    void add(MIEnergyStorage target) {
+        if (targetCount == targets.length) {
+            int newLength = targets.length * 2;
+            targets = Arrays.copyOf(targets, newLength);
+            simulationResults = new long[newLength];
+            order = new int[newLength];
+        }
+        targets[targetCount++] = target;
+    }
+
+    /**
+     * Remove all targets. Must be called after every tick to avoid keeping storages alive.
+     */
+    void clear() {
+        Arrays.fill(targets, 0, targetCount, null);
+        targetCount = 0;
+    }
+
+    /**
+     * Perform a transfer operation across the targets. Does not check for the
+     * network's max transfer rate specifically.
+     *
+     * <p>
+     * Every target is simulated once, then the targets are filled from the
+     * smallest simulation result to the largest, each receiving an even share of
+     * what remains. This way, targets that accept less leave more for the others.
+     *
+     * @return The amount that was successfully transferred.
+     */
+    long transfer(TransferOperation operation, long maxAmount) {
+        // Simulate the transfer for every target
+        for (int i = 0; i < targetCount; ++i) {
+            simulationResults[i] = operation.transfer(targets[i], maxAmount, true);
+            order[i] = i;
+        }
+        // Shuffle for better transfer on average, then sort from low to high result
+        Random random = ThreadLocalRandom.current();
+        for (int i = targetCount - 1; i > 0; --i) {
+            int j = random.nextInt(i + 1);
+            int tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+        }
+        IntArrays.quickSort(order, 0, targetCount, bySimulationResult);
+        // Actually perform the transfer
+        long transferredAmount = 0;
+        for (int i = 0; i < targetCount; ++i) {
+            int target = order[i];
+            long remainingAmount = maxAmount - transferredAmount;
+            long targetMaxAmount = Math.min(simulationResults[target], remainingAmount / (targetCount - i));
+            if (targetMaxAmount > 0) {
+                transferredAmount += operation.transfer(targets[target], targetMaxAmount, false);
+            }
+        }
+        return transferredAmount;
+    }
+
+    @FunctionalInterface
+    interface TransferOperation {
+        long transfer(MIEnergyStorage transferable, long maxAmount, boolean simulate);
+
+        TransferOperation EXTRACT = MIEnergyStorage::extract;
+        TransferOperation RECEIVE = MIEnergyStorage::receive;
+    }
+}
@@ -23,19 +23,23 @@
  */
 package aztech.modern_industrialization.pipes.fluid;
 
+import aztech.modern_industrialization.pipes.PipeSleepTracker;
 import aztech.modern_industrialization.pipes.PipeStatsCollector;
 import aztech.modern_industrialization.pipes.api.PipeNetwork;
 import aztech.modern_industrialization.pipes.api.PipeNetworkData;
 import aztech.modern_industrialization.pipes.api.PipeNetworkNode;
+import aztech.modern_industrialization.pipes.fluid.FluidTransferPlanner.TransferOperation;
 import aztech.modern_industrialization.thirdparty.fabrictransfer.api.fluid.FluidVariant;
-import com.google.common.primitives.Ints;
 import com.mojang.logging.LogUtils;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
+import net.minecraft.core.BlockPos;
 import net.minecraft.server.level.ServerLevel;
-import net.neoforged.neoforge.fluids.capability.IFluidHandler;
+import net.minecraft.world.level.ChunkPos;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 
 public class FluidNetwork extends PipeNetwork {
@@ -44,6 +48,24 @@ public class FluidNetwork extends PipeNetwork {
     final int nodeCapacity;
     final PipeStatsCollector stats = new PipeStatsCollector();
     final PipeStatsCollector capacityStats = new PipeStatsCollector();
+    private final PipeSleepTracker sleep = new PipeSleepTracker();
+    private long lastNetworkCapacity = 0;
+    /**
+     * Fluid stored in the ticking nodes, or null if it needs to be rebuilt in {@link #prepareTick}.
+     */
+    @Nullable
+    private FluidLump lump;
+    /**
+     * Targets of the ticking nodes, valid if {@link #lump} is not null.
+     */
+    private final FluidTransferPlanner planner = new FluidTransferPlanner();
+    /**
+     * Chunks of the ticking nodes, valid if {@link #lump} is not null.
+     */
+    private final LongSet lumpChunks = new LongOpenHashSet();
+    private final List<BlockPos> cleanedNodes = new ArrayList<>();
+    private boolean syncNodes = true;
+    private FluidVariant syncedFluid = FluidVariant.blank();
 
     public FluidNetwork(int id, PipeNetworkData data, int nodeCapacity) {
         super(id, data == null ? new FluidNetworkData(FluidVariant.blank()) : data);
@@ -51,139 +73,193 @@ public class FluidNetwork extends PipeNetwork {
     }
 
     @Override
-    public void tick(ServerLevel world) {
-        // Gather targets and hopefully set fluid
-        List<FluidTarget> targets = new ArrayList<>();
-        List<FluidNetworkExtensionTank> extensions = new ArrayList<>();
-        long networkAmount = 0;
-        int loadedNodeCount = 0;
-        for (var entry : iterateTickingNodes()) {
+    protected void onTickingNodesChanged() {
+        // Can be called from prepareTick, which must not touch the extension tanks. The extensions that are not
+        // connected anymore are released by the next claimExtensions.
+        wake();
+        materialiseLump();
+    }
+
+    @Override
+    protected void onSetNode(@Nullable PipeNetworkNode node) {
+        dissolveLump();
+    }
+
+    @Override
+    public void onRemove() {
+        dissolveLump();
+    }
+
+    /**
+     * Write the share of each node back to the node, and rebuild the lump in the next {@link #prepareTick}.
+     * Must be called when the connections of a node change. Also releases the extension tanks, they will be claimed
+     * again by the next tick if they are still connected.
+     */
+    void dissolveLump() {
+        wake();
+        planner.releaseExtensions();
+        materialiseLump();
+    }
+
+    private void materialiseLump() {
+        if (lump != null) {
+            lump.materialise();
+            lump = null;
+        }
+    }
+
+    /**
+     * Stop sleeping, must be called when a neighbor of the network changes.
+     */
+    void wake() {
+        sleep.wake();
+    }
+
+    @Override
+    public int getEndpointCount() {
+        return planner.getTargetCount();
+    }
+
+    @Override
+    public boolean isSleeping() {
+        return sleep.isSleeping();
+    }
+
+    @Override
+    public void prepareTick() {
+        var tickingNodes = iterateTickingNodes();
+        if (lump != null) {
+            return;
+        }
+
+        FluidLump newLump = new FluidLump();
+        lumpChunks.clear();
+        for (var entry : tickingNodes) {
             FluidNetworkNode fluidNode = (FluidNetworkNode) entry.getNode();
-            fluidNode.gatherTargetsAndPickFluid(world, entry.getPos(), targets, extensions);
-            // Amount goes after the gather...() call because the gather...() call cleans
-            // invalid amounts.
-            networkAmount += fluidNode.amount;
-            loadedNodeCount++;
+            var oldLump = fluidNode.lump;
+            if (oldLump != null) {
+                // Node that was moved from another network
+                oldLump.materialise();
+            }
+            if (fluidNode.cleanAmount()) {
+                cleanedNodes.add(entry.getPos());
+            }
+            newLump.add(fluidNode);
+            lumpChunks.add(ChunkPos.asLong(entry.getPos()));
+        }
+        planner.rebuildLayout(tickingNodes);
+        lump = newLump;
+        syncNodes = true;
+    }
+
+    @Override
+    public void tick(ServerLevel world) {
+        if (lump == null) {
+            prepareTick();
         }
-        long networkCapacity = (long) loadedNodeCount * nodeCapacity;
+        for (BlockPos pos : cleanedNodes) {
+            manager.markNodeUnsaved(pos);
+        }
+        cleanedNodes.clear();
+
+        if (sleep.shouldSkipTick()) {
+            stats.addValue(0);
+            capacityStats.addValue(lastNetworkCapacity);
+            reportSleeping();
+            return;
+        }
+
+        // Gather targets and hopefully set fluid
+        planner.gather(world, this);
+        long networkAmount = lump.amount;
+        long networkCapacity = (long) lump.size() * nodeCapacity;
         FluidVariant fluid = ((FluidNetworkData) data).fluid;
 
         long extracted = 0, inserted = 0;
 
         if (!fluid.isBlank()) {
-            var it = extensions.iterator();
-            while (it.hasNext()) {
-                var extension = it.next();
-                if (extension.tryClaimForNetwork(world, fluid)) {
-                    networkAmount += extension.storage().getAmount();
-                    networkCapacity += extension.getCapacity();
-                    extension.clear();
-                } else {
-                    it.remove();
-                }
-            }
+            planner.claimExtensions(fluid);
+            networkAmount += planner.getClaimedAmount();
+            networkCapacity += planner.getClaimedCapacity();
 
             // Extract from targets into the network
-            extracted = transferByPriority(TransferOperation.EXTRACT, targets, fluid, networkCapacity - networkAmount);
+            extracted = planner.transferByPriority(TransferOperation.EXTRACT, fluid, networkCapacity - networkAmount);
             networkAmount += extracted;
             // Insert into the targets from the network
-            inserted = transferByPriority(TransferOperation.INSERT, targets, fluid, networkAmount);
+            inserted = planner.transferByPriority(TransferOperation.INSERT, fluid, networkAmount);
             networkAmount -= inserted;
 
             // Rebalance fluid inside the extensions and nodes
-            var sortedExtensions = new ArrayList<>(extensions);
-            sortedExtensions.sort((ext1, ext2) -> -Long.compare(ext1.getCapacity(), ext2.getCapacity()));
-
-            long removedCapacity = 0;
-            for (var extension : sortedExtensions) {
-                var capacity = extension.getCapacity();
-                long toInsert = (long) Math.ceil((double) networkAmount * capacity / (networkCapacity - removedCapacity));
-                extension.releaseFromNetwork(fluid, toInsert);
-                networkAmount -= toInsert;
-                removedCapacity += capacity;
-            }
+            networkAmount = planner.balanceExtensions(fluid, networkAmount, networkCapacity);
 
-            for (var entry : iterateTickingNodes()) {
-                FluidNetworkNode fluidNode = (FluidNetworkNode) entry.getNode();
-                fluidNode.amount = networkAmount / loadedNodeCount;
-                networkAmount -= fluidNode.amount;
-                loadedNodeCount--;
+            // The rest stays in the nodes, only the chunks need to be saved again.
+            if (lump.amount != networkAmount) {
+                lump.amount = networkAmount;
+                for (LongIterator chunkIt = lumpChunks.iterator(); chunkIt.hasNext();) {
+                    manager.markChunkUnsaved(chunkIt.nextLong());
+                }
             }
+        } else {
+            planner.releaseExtensions();
         }
 
         stats.addValue(Math.max(extracted, inserted));
+        reportMoved(Math.max(extracted, inserted));
         capacityStats.addValue(networkCapacity);
+        lastNetworkCapacity = networkCapacity;
+        sleep.onTickDone(extracted > 0 || inserted > 0);
 
-        for (var entry : iterateTickingNodes()) {
-            ((FluidNetworkNode) entry.getNode()).afterTick(world, entry.getPos());
+        // Only sync nodes if they might display another fluid.
+        fluid = ((FluidNetworkData) data).fluid;
+        if (syncNodes || !fluid.equals(syncedFluid)) {
+            for (var entry : iterateTickingNodes()) {
+                ((FluidNetworkNode) entry.getNode()).afterTick(world, entry.getPos());
+            }
+            syncNodes = false;
+            syncedFluid = fluid;
         }
     }
 
     /**
-     * Perform a transfer operation for a priority bucket, starting with higher
-     * priority targets.
-     *
-     * @return The amount that was successfully transferred.
+     * Fluid of a set of nodes, stored as a single amount. The share of each node is computed
+     * when needed, for example when the node is saved, and only written back to the nodes
+     * when the lump is dissolved.
      */
-    private static long transferByPriority(TransferOperation operation, List<FluidTarget> targets, FluidVariant fluid, long maxAmount) {
-        // Sort by decreasing priority
-        targets.sort(Comparator.comparingInt(target -> -target.priority));
-        // Transfer for each bucket
-        long transferredAmount = 0;
-        int bucketStart = 0;
-        for (int i = 0; i < targets.size(); ++i) {
-            if (i == targets.size() - 1 || targets.get(bucketStart).priority != targets.get(i + 1).priority) {
-                transferredAmount += transferForBucket(operation, targets.subList(bucketStart, i + 1), fluid, maxAmount - transferredAmount);
-                bucketStart = i + 1;
-            }
+    static final class FluidLump {
+        private final List<FluidNetworkNode> nodes = new ArrayList<>();
+        private long amount = 0;
+        private boolean materialised = false;
+
+        private void add(FluidNetworkNode node) {
+            node.lump = this;
+            node.lumpIndex = nodes.size();
+            nodes.add(node);
+            amount += node.amount;
         }
-        return transferredAmount;
-    }
 
-    /**
-     * Perform a transfer operation for a priority bucket, so {@code bucket} is a
-     * sublist of targets with the same priority each.
-     * 
-     * @return The amount that was successfully transferred.
-     */
-    private static long transferForBucket(TransferOperation operation, List<FluidTarget> bucket, FluidVariant fluid, long maxAmount) {
-        // Shuffle the bucket for better average transfer when simulation returns the
-        // same result every time
-        Collections.shuffle(bucket);
-        // Simulate the transfer for every target
-        for (FluidTarget target : bucket) {
-            target.simulationResult = operation.transfer(target.storage, fluid, maxAmount, true);
-        }
-        // Sort from low result to high result
-        bucket.sort(Comparator.comparingLong(target -> target.simulationResult));
-        // Actually perform the transfer
-        long transferredAmount = 0;
-        for (int i = 0; i < bucket.size(); ++i) {
-            FluidTarget target = bucket.get(i);
-            int remainingTargets = bucket.size() - i;
-            long remainingAmount = maxAmount - transferredAmount;
-            long targetMaxAmount = remainingAmount / remainingTargets;
-
-            transferredAmount += operation.transfer(target.storage, fluid, targetMaxAmount, false);
-        }
-        return transferredAmount;
-    }
-
-    @FunctionalInterface
-    private interface TransferOperation {
-        long transfer(IFluidHandler handler, FluidVariant fluid, long maxAmount, boolean simulate);
-
-        TransferOperation INSERT = (handler, fluid, maxAmount, simulate) -> {
-            return handler.fill(
-                    fluid.toStack(Ints.saturatedCast(maxAmount)),
-                    simulate ? IFluidHandler.FluidAction.SIMULATE : IFluidHandler.FluidAction.EXECUTE);
-        };
-
-        TransferOperation EXTRACT = (handler, fluid, maxAmount, simulate) -> {
-            return handler.drain(
-                    fluid.toStack(Ints.saturatedCast(maxAmount)),
-                    simulate ? IFluidHandler.FluidAction.SIMULATE : IFluidHandler.FluidAction.EXECUTE).getAmount();
-        };
+        private int size() {
+            return nodes.size();
+        }
+
+        long getShare(int index) {
+            long share = amount / nodes.size();
+            return index < amount % nodes.size() ? share + 1 : share;
+        }
+
+        /**
+         * Write the shares back to the nodes. Can be called by another network if some nodes were moved to it.
+         */
+        void materialise() {
+            if (materialised) {
+                return;
+            }
+            materialised = true;
+            for (int i = 0; i < nodes.size(); ++i) {
+                var node = nodes.get(i);
+                node.amount = getShare(i);
+                node.lump = null;
+            }
+        }
     }
 
     @Override
@@ -209,7 +285,7 @@ public class FluidNetwork extends PipeNetwork {
         if (onlyFluid)
             return false;
         for (PipeNetworkNode node : getRawNodeMap().values()) {
-            if (node == null || ((FluidNetworkNode) node).amount != 0) {
+            if (node == null || ((FluidNetworkNode) node).getAmount() != 0) {
                 return false;
             }
         }
@@ -222,6 +298,8 @@ public class FluidNetwork extends PipeNetwork {
     protected void setFluid(FluidVariant fluid) {
         if (((FluidNetworkData) data).fluid.isBlank()) {
             ((FluidNetworkData) data).fluid = fluid;
+            manager.markNetworksUnsaved();
+            wake();
         }
     }
 
@@ -236,9 +314,11 @@ public class FluidNetwork extends PipeNetwork {
             }
         }
         // Clear
+        dissolveLump();
         for (PipeNetworkNode node : getRawNodeMap().values()) {
             ((FluidNetworkNode) node).amount = 0;
         }
         ((FluidNetworkData) data).fluid = FluidVariant.blank();
+        manager.markNetworksUnsaved();
     }
 }
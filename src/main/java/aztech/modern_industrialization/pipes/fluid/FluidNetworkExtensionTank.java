@@ -27,71 +27,109 @@ import aztech.modern_industrialization.thirdparty.fabrictransfer.api.bridge.Slot
 import aztech.modern_industrialization.thirdparty.fabrictransfer.api.fluid.FluidVariant;
 import aztech.modern_industrialization.thirdparty.fabrictransfer.api.storage.base.SingleSlotStorage;
 import aztech.modern_industrialization.thirdparty.fabrictransfer.api.transaction.Transaction;
-import net.minecraft.world.level.Level;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * Act as a pipe network extension when connected to a fluid pipe in I/O mode.
+ * Once claimed by a network, the tank stays claimed until it is released by the
+ * network, for example because the tank was removed, unloaded or relocked.
+ * The fluid is never moved out of a claimed tank: the network only reads its
+ * amount, and updates it after each transfer.
  */
 public class FluidNetworkExtensionTank extends SlotFluidHandler {
-    private static final int NOT_CLAIMED = -1;
-    private int lastClaimTick = NOT_CLAIMED;
+    /**
+     * The network that claimed this tank, if any.
+     */
+    @Nullable
+    private Object owner;
+    /**
+     * Whether the tank was checked to accept the fluid of the owner, cleared when that might have changed.
+     */
+    private boolean checked;
+    /**
+     * Tick of the owner where this tank was last seen, see {@link FluidTransferPlanner#claimExtensions}.
+     */
+    int claimStamp;
+    /**
+     * Capacity counted by the owner.
+     */
+    long claimedCapacity;
 
     public FluidNetworkExtensionTank(SingleSlotStorage<FluidVariant> storage) {
         super(storage);
     }
 
-    public boolean tryClaimForNetwork(Level level, FluidVariant networkFluid) {
-        if (storage.getAmount() != 0 && !storage.getResource().equals(networkFluid)) {
+    /**
+     * Try to claim this tank for a network, or check that it can still be used if
+     * it was already claimed by the same network.
+     *
+     * @return true if the tank is claimed by the network.
+     */
+    boolean tryClaim(Object network, FluidVariant networkFluid) {
+        if (owner != null && owner != network) {
             return false;
         }
+        if (!storage.getResource().isBlank() && !storage.getResource().equals(networkFluid)) {
+            release(network);
+            return false;
+        }
+        if (owner == network && checked) {
+            return true;
+        }
 
         try (var tx = Transaction.openOuter()) {
             storage.extract(networkFluid, storage.getAmount(), tx);
             long inserted = storage.insert(networkFluid, storage.getCapacity(), tx);
             if (inserted != storage.getCapacity()) {
                 // Tank locked to a different fluid
+                release(network);
                 return false;
             }
         }
+        owner = network;
+        checked = true;
+        return true;
+    }
 
-        int tick = level.getServer().getTickCount();
-        if (tick > lastClaimTick) {
-            lastClaimTick = tick;
-            return true;
-        } else {
-            return false;
-        }
+    boolean isClaimedBy(Object network) {
+        return owner == network;
     }
 
-    public void clear() {
-        if (storage.getAmount() == 0) {
-            return;
-        }
-        try (var tx = Transaction.openOuter()) {
-            storage.extract(storage.getResource(), storage.getAmount(), tx);
-            tx.commit();
-        }
-        if (storage.getAmount() > 0) {
-            throw new IllegalStateException("Internal MI error: extension %s should be empty after clearing it.".formatted(this));
+    void release(Object network) {
+        if (owner == network) {
+            owner = null;
+            checked = false;
         }
     }
 
-    public void releaseFromNetwork(FluidVariant fluid, long amount) {
-        if (storage.getAmount() > 0) {
-            throw new IllegalStateException("Internal MI error: extension %s should be empty when being released.".formatted(this));
-        }
-        lastClaimTick = NOT_CLAIMED;
-        if (fluid.isBlank()) {
-            if (storage.getAmount() != 0) {
-                throw new IllegalStateException("Internal MI error: releasing extension %s from network with non-empty tank.".formatted(this));
-            }
+    /**
+     * Must be called when the tank might not accept the fluid of its network anymore, or when its capacity changes.
+     */
+    public void invalidateClaim() {
+        checked = false;
+    }
+
+    long getAmount() {
+        return storage.getAmount();
+    }
+
+    /**
+     * Set the amount of a claimed tank by inserting or extracting the difference.
+     */
+    void setNetworkAmount(FluidVariant fluid, long amount) {
+        long currentAmount = storage.getAmount();
+        if (currentAmount == amount) {
+            return;
         }
         try (var tx = Transaction.openOuter()) {
-            long inserted = storage.insert(fluid, amount, tx);
+            long moved = currentAmount < amount
+                    ? storage.insert(fluid, amount - currentAmount, tx)
+                    : storage.extract(fluid, currentAmount - amount, tx);
             tx.commit();
-            if (inserted != amount) {
+            if (moved != Math.abs(amount - currentAmount)) {
                 throw new IllegalStateException(
-                        "Internal MI error: releasing extension %s, only inserted %d out of %d.".formatted(this, inserted, amount));
+                        "Internal MI error: setting amount of extension %s to %d, only moved %d out of %d.".formatted(this, amount, moved,
+                                Math.abs(amount - currentAmount)));
             }
         }
     }
@@ -100,11 +138,6 @@ public class FluidNetworkExtensionTank extends SlotFluidHandler {
         return storage.getCapacity();
     }
 
-    @Override
-    protected boolean disallowIo() {
-        return lastClaimTick != NOT_CLAIMED;
-    }
-
     @Override
     public String toString() {
         return "FluidNetworkExtensionTank{" + storage + '}';
@@ -34,7 +34,6 @@ import aztech.modern_industrialization.pipes.gui.IPipeScreenHandlerHelper;
 import aztech.modern_industrialization.pipes.impl.PipeBlockEntity;
 import aztech.modern_industrialization.pipes.impl.PipeNetworks;
 import aztech.modern_industrialization.thirdparty.fabrictransfer.api.fluid.FluidVariant;
-import aztech.modern_industrialization.util.IOFluidHandler;
 import aztech.modern_industrialization.util.NbtHelper;
 import java.util.*;
 import net.minecraft.core.BlockPos;
@@ -57,45 +56,67 @@ import net.neoforged.neoforge.fluids.capability.templates.EmptyFluidHandler;
 import org.jetbrains.annotations.Nullable;
 
 public class FluidNetworkNode extends PipeNetworkNode {
+    /**
+     * Amount of this node, only valid if {@link #lump} is null.
+     */
     long amount = 0;
+    /**
+     * The lump currently holding the fluid of this node, if any.
+     */
+    @Nullable
+    FluidNetwork.FluidLump lump = null;
+    int lumpIndex;
     private final List<FluidConnection> connections = new ArrayList<>();
     private FluidVariant cachedFluid = FluidVariant.blank();
 
     /**
-     * Add all valid targets to the target list, and pick the fluid for the network
-     * if no fluid is set.
+     * Clean invalid amounts.
+     *
+     * @return true if the amount was changed.
      */
-    void gatherTargetsAndPickFluid(ServerLevel world, BlockPos pos, List<FluidTarget> targets, List<FluidNetworkExtensionTank> extensions) {
+    boolean cleanAmount() {
         FluidNetworkData data = (FluidNetworkData) network.data;
         FluidNetwork network = (FluidNetwork) this.network;
+        boolean changed = false;
 
         if (amount > network.nodeCapacity) {
             MI.LOGGER.warn("Fluid amount > nodeCapacity, deleting some fluid!");
             amount = network.nodeCapacity;
+            changed = true;
         }
         if (amount > 0 && data.fluid.isBlank()) {
             MI.LOGGER.warn("Amount > 0 but fluid is blank, deleting some fluid!");
             amount = 0;
+            changed = true;
+        }
+        return changed;
+    }
+
+    private void wakeNetwork() {
+        if (network instanceof FluidNetwork fluidNetwork) {
+            fluidNetwork.wake();
+        }
+    }
+
+    private void onConnectionsChanged() {
+        if (network instanceof FluidNetwork fluidNetwork) {
+            fluidNetwork.dissolveLump();
         }
+    }
 
+    /**
+     * Add a target for each connection of this node.
+     */
+    void collectTargets(BlockPos pos, List<FluidTarget> targets) {
         for (FluidConnection connection : connections) {
-            var storage = getNeighborStorage(world, pos, connection);
-            if (data.fluid.isBlank() && connection.canExtract()) {
-                // Try to set fluid, will return null if none could be found.
-                data.fluid = FluidVariant.of(storage.drain(Integer.MAX_VALUE, IFluidHandler.FluidAction.SIMULATE));
-            }
-            if (connection.canInsert() && connection.canExtract() && storage instanceof FluidNetworkExtensionTank extension) {
-                extensions.add(extension);
-            } else {
-                targets.add(new FluidTarget(connection.priority, new IOFluidHandler(storage, connection.canInsert(), connection.canExtract())));
-            }
+            targets.add(new FluidTarget(this, pos, connection));
         }
     }
 
-    private IFluidHandler getNeighborStorage(ServerLevel world, BlockPos pos, FluidConnection connection) {
+    IFluidHandler getNeighborStorage(ServerLevel world, BlockPos pos, FluidConnection connection) {
         if (connection.cache == null) {
             connection.cache = BlockCapabilityCache.create(Capabilities.FluidHandler.BLOCK, world, pos.relative(connection.direction),
-                    connection.direction.getOpposite());
+                    connection.direction.getOpposite(), () -> connections.contains(connection), this::wakeNetwork);
         }
         var storage = connection.cache.getCapability();
         return Objects.requireNonNullElse(storage, EmptyFluidHandler.INSTANCE);
@@ -105,7 +126,7 @@ public class FluidNetworkNode extends PipeNetworkNode {
     public void updateConnections(Level world, BlockPos pos) {
         // Remove the connection to the outside world if a connection to another pipe is made.
         var levelNetworks = PipeNetworks.get((ServerLevel) world);
-        connections.removeIf(connection -> {
+        boolean removed = connections.removeIf(connection -> {
             for (var type : PipeNetworkType.getTypes().values()) {
                 var manager = levelNetworks.getOptionalManager(type);
                 if (manager != null && manager.hasLink(pos, connection.direction)) {
@@ -114,6 +135,12 @@ public class FluidNetworkNode extends PipeNetworkNode {
             }
             return false;
         });
+        if (removed) {
+            onConnectionsChanged();
+        } else {
+            // A neighbor changed, maybe a transfer is possible now.
+            wakeNetwork();
+        }
     }
 
     @Override
@@ -144,6 +171,8 @@ public class FluidNetworkNode extends PipeNetworkNode {
                     conn.type = BLOCK_OUT;
                 else
                     connections.remove(i);
+                // The targets of the network copy the type of the connection.
+                onConnectionsChanged();
                 return;
             }
         }
@@ -160,12 +189,13 @@ public class FluidNetworkNode extends PipeNetworkNode {
         // Otherwise try to connect
         if (canConnect(world, pos, direction)) {
             connections.add(new FluidConnection(direction, BLOCK_IN, 0));
+            onConnectionsChanged();
         }
     }
 
     @Override
     public CompoundTag toTag(CompoundTag tag, HolderLookup.Provider registries) {
-        tag.putLong("amount_ftl", amount);
+        tag.putLong("amount_ftl", getAmount());
         for (FluidConnection connection : connections) {
             CompoundTag connectionTag = new CompoundTag();
             connectionTag.putByte("connections", (byte) encodeConnectionType(connection.type));
@@ -210,10 +240,10 @@ public class FluidNetworkNode extends PipeNetworkNode {
         return null;
     }
 
-    private class FluidConnection {
+    class FluidConnection {
         private final Direction direction;
         private PipeEndpointType type;
-        private int priority;
+        int priority;
         private BlockCapabilityCache<IFluidHandler, @Nullable Direction> cache;
 
         private FluidConnection(Direction direction, PipeEndpointType type, int priority) {
@@ -222,11 +252,11 @@ public class FluidNetworkNode extends PipeNetworkNode {
             this.priority = priority;
         }
 
-        private boolean canInsert() {
+        boolean canInsert() {
             return type == BLOCK_IN || type == BLOCK_IN_OUT;
         }
 
-        private boolean canExtract() {
+        boolean canExtract() {
             return type == BLOCK_OUT || type == BLOCK_IN_OUT;
         }
 
@@ -266,6 +296,7 @@ public class FluidNetworkNode extends PipeNetworkNode {
                     public void setConnectionType(int type) {
                         if (0 <= type && type < 3) {
                             FluidConnection.this.type = decodeConnectionType(type);
+                            onConnectionsChanged();
                             helper.callMarkDirty();
                             helper.callSync();
                         }
@@ -279,6 +310,7 @@ public class FluidNetworkNode extends PipeNetworkNode {
                     @Override
                     public void setPriority(int channel, int priority) {
                         FluidConnection.this.priority = priority;
+                        onConnectionsChanged();
                         helper.callMarkDirty();
                     }
 
@@ -329,7 +361,7 @@ public class FluidNetworkNode extends PipeNetworkNode {
     }
 
     public long getAmount() {
-        return amount;
+        return lump != null ? lump.getShare(lumpIndex) : amount;
     }
 
     // Used in the Waila plugin
@@ -342,7 +374,7 @@ public class FluidNetworkNode extends PipeNetworkNode {
         var fluidNetwork = (FluidNetwork) network;
         for (var posNode : network.iterateTickingNodes()) {
             var node = (FluidNetworkNode) posNode.getNode();
-            stored += node.amount;
+            stored += node.getAmount();
             capacity += fluidNetwork.nodeCapacity;
         }
         return new InGameInfo(getFluid(), stored, capacity, fluidNetwork.stats.getValue(), fluidNetwork.capacityStats.getValue());
@@ -23,20 +23,36 @@
  */
 package aztech.modern_industrialization.pipes.fluid;
 
+import java.util.Objects;
+import net.minecraft.core.BlockPos;
+import net.minecraft.server.level.ServerLevel;
 import net.neoforged.neoforge.fluids.capability.IFluidHandler;
+import net.neoforged.neoforge.fluids.capability.templates.EmptyFluidHandler;
 
 /**
- * A target to be used during a transfer operation.
+ * A target to be used during a transfer operation. Targets are kept across ticks
+ * by the {@link FluidTransferPlanner} until the connections of the network change.
  */
 class FluidTarget {
     final int priority;
-    final IFluidHandler storage;
+    final boolean canInsert, canExtract;
+    private final FluidNetworkNode node;
+    private final BlockPos pos;
+    private final FluidNetworkNode.FluidConnection connection;
 
-    // A temporary value used to sort fluid targets
-    long simulationResult;
+    // Refreshed every tick
+    IFluidHandler storage = EmptyFluidHandler.INSTANCE;
 
-    public FluidTarget(int priority, IFluidHandler storage) {
-        this.priority = priority;
-        this.storage = storage;
+    FluidTarget(FluidNetworkNode node, BlockPos pos, FluidNetworkNode.FluidConnection connection) {
+        this.priority = connection.priority;
+        this.canInsert = connection.canInsert();
+        this.canExtract = connection.canExtract();
+        this.node = node;
+        this.pos = pos;
+        this.connection = connection;
+    }
+
+    void refreshStorage(ServerLevel world) {
+        storage = Objects.requireNonNull(node.getNeighborStorage(world, pos, connection));
     }
 }
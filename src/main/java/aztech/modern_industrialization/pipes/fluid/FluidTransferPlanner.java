@@ -0,0 +1,321 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Azercoco & Technici4n
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package aztech.modern_industrialization.pipes.fluid;
+
+import aztech.modern_industrialization.pipes.api.PipeNetwork;
+import aztech.modern_industrialization.thirdparty.fabrictransfer.api.fluid.FluidVariant;
+import com.google.common.primitives.Ints;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import net.minecraft.server.level.ServerLevel;
+import net.neoforged.neoforge.fluids.FluidStack;
+import net.neoforged.neoforge.fluids.capability.IFluidHandler;
+
+/**
+ * Transfer state of a {@link FluidNetwork} that is reused across ticks: the
+ * targets sorted by priority, the extension tanks and scratch arrays, such that
+ * transfers don't allocate in the steady state.
+ */
+class FluidTransferPlanner {
+    private static final Comparator<FluidTarget> PRIORITY_ORDER = Comparator.comparingInt(target -> -target.priority);
+    private static final Comparator<FluidNetworkExtensionTank> CAPACITY_ORDER = (ext1, ext2) -> -Long.compare(ext1.claimedCapacity,
+            ext2.claimedCapacity);
+
+    /**
+     * All targets, sorted by decreasing priority.
+     */
+    private FluidTarget[] targets = new FluidTarget[0];
+    /**
+     * Whether each target takes part in transfers this tick, i.e. is not an extension tank.
+     */
+    private boolean[] active = new boolean[0];
+    /**
+     * Extensions found by the last {@link #gather}.
+     */
+    private FluidNetworkExtensionTank[] extensions = new FluidNetworkExtensionTank[0];
+    private int extensionCount = 0;
+    /**
+     * Extensions claimed by the network, sorted by decreasing capacity.
+     */
+    private FluidNetworkExtensionTank[] claimed = new FluidNetworkExtensionTank[0];
+    private int claimedCount = 0;
+    private long claimedCapacity = 0;
+    private int claimStamp = 0;
+    // Scratch arrays for transferForBucket
+    private int[] bucketTargets = new int[0];
+    private long[] sortKeys = new long[0];
+    // Reused stack, only rebuilt when the fluid changes
+    private FluidVariant stackFluid = FluidVariant.blank();
+    private FluidStack stack = FluidStack.EMPTY;
+
+    /**
+     * Rebuild the targets from the connections of the given nodes.
+     */
+    void rebuildLayout(Collection<PipeNetwork.PosNode> nodes) {
+        List<FluidTarget> newTargets = new ArrayList<>();
+        for (var entry : nodes) {
+            ((FluidNetworkNode) entry.getNode()).collectTargets(entry.getPos(), newTargets);
+        }
+        targets = newTargets.toArray(new FluidTarget[0]);
+        Arrays.sort(targets, PRIORITY_ORDER);
+        active = new boolean[targets.length];
+        extensions = new FluidNetworkExtensionTank[targets.length];
+        bucketTargets = new int[targets.length];
+        sortKeys = new long[targets.length];
+    }
+
+    int getTargetCount() {
+        return targets.length;
+    }
+
+    /**
+     * Look up the storage of every target, pick the fluid of the network if it
+     * doesn't have one yet, and separate extension tanks from regular targets.
+     */
+    void gather(ServerLevel world, FluidNetwork network) {
+        FluidNetworkData data = (FluidNetworkData) network.data;
+        extensionCount = 0;
+
+        for (int i = 0; i < targets.length; ++i) {
+            FluidTarget target = targets[i];
+            target.refreshStorage(world);
+            var storage = target.storage;
+
+            if (data.fluid.isBlank() && target.canExtract) {
+                // Try to set fluid, will return null if none could be found.
+                data.fluid = FluidVariant.of(storage.drain(Integer.MAX_VALUE, IFluidHandler.FluidAction.SIMULATE));
+                if (!data.fluid.isBlank()) {
+                    network.manager.markNetworksUnsaved();
+                }
+            }
+            if (target.canInsert && target.canExtract && storage instanceof FluidNetworkExtensionTank extension) {
+                extensions[extensionCount++] = extension;
+                active[i] = false;
+            } else {
+                active[i] = true;
+            }
+        }
+    }
+
+    /**
+     * Claim the extensions found by {@link #gather}, and release the claimed extensions that were not found anymore
+     * or that can't be used anymore. The claimed extensions are kept across ticks.
+     */
+    void claimExtensions(FluidVariant fluid) {
+        int stamp = ++claimStamp;
+        boolean changed = false;
+
+        for (int i = 0; i < extensionCount; ++i) {
+            var extension = extensions[i];
+            extensions[i] = null;
+            if (extension.claimStamp == stamp) {
+                // Connected to the network more than once
+                continue;
+            }
+            boolean wasClaimed = extension.isClaimedBy(this);
+            if (!extension.tryClaim(this, fluid)) {
+                continue;
+            }
+            extension.claimStamp = stamp;
+            if (!wasClaimed) {
+                addClaimed(extension);
+                changed = true;
+            } else if (extension.claimedCapacity != extension.getCapacity()) {
+                claimedCapacity += extension.getCapacity() - extension.claimedCapacity;
+                extension.claimedCapacity = extension.getCapacity();
+                changed = true;
+            }
+        }
+        extensionCount = 0;
+
+        int retained = 0;
+        for (int i = 0; i < claimedCount; ++i) {
+            var extension = claimed[i];
+            if (extension.claimStamp == stamp) {
+                claimed[retained++] = extension;
+            } else {
+                extension.release(this);
+                claimedCapacity -= extension.claimedCapacity;
+                changed = true;
+            }
+        }
+        Arrays.fill(claimed, retained, claimedCount, null);
+        claimedCount = retained;
+
+        if (changed) {
+            Arrays.sort(claimed, 0, claimedCount, CAPACITY_ORDER);
+        }
+    }
+
+    private void addClaimed(FluidNetworkExtensionTank extension) {
+        if (claimedCount == claimed.length) {
+            claimed = Arrays.copyOf(claimed, Math.max(4, 2 * claimedCount));
+        }
+        claimed[claimedCount++] = extension;
+        extension.claimedCapacity = extension.getCapacity();
+        claimedCapacity += extension.claimedCapacity;
+    }
+
+    /**
+     * Release all the claimed extensions. Their fluid stays in the tanks.
+     */
+    void releaseExtensions() {
+        for (int i = 0; i < claimedCount; ++i) {
+            claimed[i].release(this);
+            claimed[i] = null;
+        }
+        claimedCount = 0;
+        claimedCapacity = 0;
+    }
+
+    long getClaimedAmount() {
+        long amount = 0;
+        for (int i = 0; i < claimedCount; ++i) {
+            amount += claimed[i].getAmount();
+        }
+        return amount;
+    }
+
+    long getClaimedCapacity() {
+        return claimedCapacity;
+    }
+
+    /**
+     * Spread the fluid of the network across the claimed extensions, proportionally to their capacity.
+     * Only the extensions whose amount changes are updated.
+     *
+     * @return the amount of fluid left for the nodes
+     */
+    long balanceExtensions(FluidVariant fluid, long networkAmount, long networkCapacity) {
+        long removedCapacity = 0;
+        for (int i = 0; i < claimedCount; ++i) {
+            var extension = claimed[i];
+            var capacity = extension.claimedCapacity;
+            long toInsert = (long) Math.ceil((double) networkAmount * capacity / (networkCapacity - removedCapacity));
+            extension.setNetworkAmount(fluid, toInsert);
+            networkAmount -= toInsert;
+            removedCapacity += capacity;
+        }
+        return networkAmount;
+    }
+
+    /**
+     * Perform a transfer operation for every priority bucket, starting with higher
+     * priority targets.
+     *
+     * @return The amount that was successfully transferred.
+     */
+    long transferByPriority(TransferOperation operation, FluidVariant fluid, long maxAmount) {
+        long transferredAmount = 0;
+        int bucketStart = 0;
+        for (int i = 0; i < targets.length; ++i) {
+            if (i == targets.length - 1 || targets[bucketStart].priority != targets[i + 1].priority) {
+                transferredAmount += transferForBucket(operation, bucketStart, i + 1, fluid, maxAmount - transferredAmount);
+                bucketStart = i + 1;
+            }
+        }
+        return transferredAmount;
+    }
+
+    /**
+     * Perform a transfer operation for a priority bucket, i.e. the targets between
+     * {@code from} (inclusive) and {@code to} (exclusive), which all have the same
+     * priority.
+     *
+     * @return The amount that was successfully transferred.
+     */
+    private long transferForBucket(TransferOperation operation, int from, int to, FluidVariant fluid, long maxAmount) {
+        int count = 0;
+        for (int i = from; i < to; ++i) {
+            if (active[i]) {
+                bucketTargets[count++] = i;
+            }
+        }
+        // Shuffle the bucket for better average transfer when simulation returns the
+        // same result every time
+        Random random = ThreadLocalRandom.current();
+        for (int i = count - 1; i > 0; --i) {
+            int j = random.nextInt(i + 1);
+            int tmp = bucketTargets[i];
+            bucketTargets[i] = bucketTargets[j];
+            bucketTargets[j] = tmp;
+        }
+        // Simulate the transfer for every target. The result is stored in the high
+        // bits of the sort key, and the position in the shuffled bucket in the low bits.
+        for (int k = 0; k < count; ++k) {
+            long result = transfer(operation, targets[bucketTargets[k]], fluid, maxAmount, true);
+            sortKeys[k] = (result << 32) | k;
+        }
+        // Sort from low result to high result
+        Arrays.sort(sortKeys, 0, count);
+        // Actually perform the transfer
+        long transferredAmount = 0;
+        for (int i = 0; i < count; ++i) {
+            FluidTarget target = targets[bucketTargets[(int) sortKeys[i]]];
+            int remainingTargets = count - i;
+            long remainingAmount = maxAmount - transferredAmount;
+            long targetMaxAmount = remainingAmount / remainingTargets;
+
+            transferredAmount += transfer(operation, target, fluid, targetMaxAmount, false);
+        }
+        return transferredAmount;
+    }
+
+    private long transfer(TransferOperation operation, FluidTarget target, FluidVariant fluid, long maxAmount, boolean simulate) {
+        if (!(operation == TransferOperation.INSERT ? target.canInsert : target.canExtract)) {
+            return 0;
+        }
+        int amount = Ints.saturatedCast(maxAmount);
+        if (amount <= 0) {
+            return 0;
+        }
+        if (!fluid.equals(stackFluid)) {
+            stackFluid = fluid;
+            stack = fluid.toStack(1);
+        }
+        // Handlers are not allowed to modify or keep the stack, so we can reuse it.
+        stack.setAmount(amount);
+        long result = operation.transfer(target.storage, stack, simulate);
+        // Keep simulation results in [0, amount], so they fit in the high bits of the sort keys.
+        return simulate ? Math.max(0, Math.min(amount, result)) : result;
+    }
+
+    @FunctionalInterface
+    interface TransferOperation {
+        long transfer(IFluidHandler handler, FluidStack stack, boolean simulate);
+
+        TransferOperation INSERT = (handler, stack, simulate) -> {
+            return handler.fill(stack, simulate ? IFluidHandler.FluidAction.SIMULATE : IFluidHandler.FluidAction.EXECUTE);
+        };
+
+        TransferOperation EXTRACT = (handler, stack, simulate) -> {
+            return handler.drain(stack, simulate ? IFluidHandler.FluidAction.SIMULATE : IFluidHandler.FluidAction.EXECUTE).getAmount();
+        };
+    }
+}
@@ -32,12 +32,14 @@ import aztech.modern_industrialization.MITooltips;
 import aztech.modern_industrialization.blocks.FastBlockEntity;
 import aztech.modern_industrialization.blocks.WrenchableBlockEntity;
 import aztech.modern_industrialization.items.ConfigCardItem;
+import aztech.modern_industrialization.network.pipes.PipeConnectionsSyncPacket;
 import aztech.modern_industrialization.pipes.MIPipes;
 import aztech.modern_industrialization.pipes.api.*;
 import aztech.modern_industrialization.pipes.gui.IPipeScreenHandlerHelper;
 import aztech.modern_industrialization.util.NbtHelper;
 import aztech.modern_industrialization.util.TransferHelper;
 import aztech.modern_industrialization.util.WorldHelper;
+import it.unimi.dsi.fastutil.ints.IntList;
 import java.util.*;
 import net.minecraft.ChatFormatting;
 import net.minecraft.core.BlockPos;
@@ -459,11 +461,41 @@ public class PipeBlockEntity extends FastBlockEntity implements IPipeScreenHandl
         // Then send the update to the client if there was a change.
         if (!connections.equals(oldRendererConnections)) {
             rebuildCollisionShape();
-            sync();
+            if (connections.keySet().equals(oldRendererConnections.keySet())) {
+                // Only the connections changed: batch with the other pipes of the chunk.
+                PipeNetworks.scheduleConnectionsSync((ServerLevel) level, this);
+            } else {
+                // A pipe was added or removed: the client also needs its custom data.
+                sync();
+            }
         }
         setChanged();
     }
 
+    /**
+     * Client-side: replace the rendered connections with those received in a batched update.
+     * The caller is responsible for rebuilding the chunk section.
+     */
+    public void applyConnectionsUpdate(SortedMap<PipeNetworkType, PipeEndpointType[]> newConnections) {
+        connections = newConnections;
+        customData.keySet().retainAll(newConnections.keySet());
+        for (PipeNetworkType type : newConnections.keySet()) {
+            customData.computeIfAbsent(type, t -> new CompoundTag());
+        }
+        rebuildCollisionShape();
+        requestModelDataUpdate();
+    }
+
+    /**
+     * Server-side: the connections that are sent in a batched update.
+     */
+    void writeConnectionsUpdate(List<ResourceLocation> types, IntList packedConnections) {
+        for (Map.Entry<PipeNetworkType, PipeEndpointType[]> entry : connections.entrySet()) {
+            types.add(entry.getKey().getIdentifier());
+            packedConnections.add(PipeConnectionsSyncPacket.packConnections(entry.getValue()));
+        }
+    }
+
     @Override
     public CompoundTag getUpdateTag(HolderLookup.Provider registries) {
         CompoundTag tag = new CompoundTag();
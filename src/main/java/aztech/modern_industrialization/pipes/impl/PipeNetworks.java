@@ -23,10 +23,19 @@
  */
 package aztech.modern_industrialization.pipes.impl;
 
+import aztech.modern_industrialization.network.pipes.PipeConnectionsSyncPacket;
 import aztech.modern_industrialization.pipes.api.PipeNetworkManager;
 import aztech.modern_industrialization.pipes.api.PipeNetworkType;
+import aztech.modern_industrialization.pipes.electricity.EnergyGrid;
 import aztech.modern_industrialization.util.MISavedData;
 import aztech.modern_industrialization.util.WorldHelper;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
 import java.util.*;
 import net.minecraft.core.HolderLookup;
 import net.minecraft.nbt.CompoundTag;
@@ -34,21 +43,47 @@ import net.minecraft.resources.ResourceLocation;
 import net.minecraft.server.level.ServerLevel;
 import net.minecraft.world.level.ChunkPos;
 import net.minecraft.world.level.Level;
+import net.minecraft.world.level.LevelAccessor;
 import net.minecraft.world.level.saveddata.SavedData;
 import net.neoforged.neoforge.common.NeoForge;
+import net.neoforged.neoforge.event.level.ChunkEvent;
+import net.neoforged.neoforge.event.level.ChunkTicketLevelUpdatedEvent;
+import net.neoforged.neoforge.event.server.ServerStoppingEvent;
 import net.neoforged.neoforge.event.tick.LevelTickEvent;
 import org.jetbrains.annotations.Nullable;
 
+/**
+ * Pipe networks of a level. The networks themselves are saved in this file, while
+ * their nodes and links are saved in one {@link Shard} per region, so that only
+ * the regions that changed are written again.
+ */
 public class PipeNetworks extends MISavedData {
-    private static final SavedData.Factory<PipeNetworks> FACTORY = new SavedData.Factory<>(() -> new PipeNetworks(new HashMap<>()),
+    private static final SavedData.Factory<PipeNetworks> FACTORY = new SavedData.Factory<>(() -> new PipeNetworks(new HashMap<>(), true),
             PipeNetworks::readNbt);
+    private static final SavedData.Factory<Shard> SHARD_FACTORY = new SavedData.Factory<>(Shard::new, Shard::new);
     private static final String NAME = "modern_industrialization_pipe_networks";
 
     private final Map<PipeNetworkType, PipeNetworkManager> managers;
     private final Map<Long, List<Runnable>> loadPipesByChunk = new HashMap<>();
+    /**
+     * Pipes whose connections changed this tick, by chunk. Sent in one packet per chunk at the end of the tick.
+     */
+    private final Long2ObjectMap<Set<PipeBlockEntity>> pendingConnectionSyncs = new Long2ObjectOpenHashMap<>();
+    /**
+     * Regions that have a shard.
+     */
+    private final LongSet shardRegions = new LongOpenHashSet();
+    private boolean shardsLoaded;
+    /**
+     * Node data of all unsaved regions, computed in a single pass by the first shard
+     * that gets saved, and reused by the following ones.
+     */
+    @Nullable
+    private Long2ObjectMap<CompoundTag> preparedShards;
 
-    public PipeNetworks(Map<PipeNetworkType, PipeNetworkManager> managers) {
+    public PipeNetworks(Map<PipeNetworkType, PipeNetworkManager> managers, boolean shardsLoaded) {
         this.managers = managers;
+        this.shardsLoaded = shardsLoaded;
     }
 
     public PipeNetworkManager getManager(PipeNetworkType type) {
@@ -60,33 +95,147 @@ public class PipeNetworks extends MISavedData {
         return managers.get(type);
     }
 
+    @Override
+    public boolean isDirty() {
+        if (super.isDirty()) {
+            return true;
+        }
+        for (PipeNetworkManager manager : managers.values()) {
+            if (manager.hasUnsavedNetworks()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public CompoundTag save(CompoundTag nbt, HolderLookup.Provider registries) {
         for (Map.Entry<PipeNetworkType, PipeNetworkManager> entry : managers.entrySet()) {
-            nbt.put(entry.getKey().getIdentifier().toString(), entry.getValue().toTag(new CompoundTag(), registries));
+            nbt.put(entry.getKey().getIdentifier().toString(), entry.getValue().writeNetworks(new CompoundTag(), registries));
         }
+        nbt.putLongArray("shards", shardRegions.toLongArray());
         return nbt;
     }
 
     public static PipeNetworks readNbt(CompoundTag nbt, HolderLookup.Provider registries) {
+        // Before shards, the nodes were stored in this file together with the networks.
+        boolean legacy = !nbt.contains("shards");
+
         Map<PipeNetworkType, PipeNetworkManager> managers = new HashMap<>();
         for (Map.Entry<ResourceLocation, PipeNetworkType> entry : PipeNetworkType.getTypes().entrySet()) {
             PipeNetworkManager manager = new PipeNetworkManager(entry.getValue());
             String tagKey = entry.getKey().toString();
-            if (nbt.contains(tagKey)) {
-                manager.fromNbt(nbt.getCompound(tagKey), registries);
+            if (legacy) {
+                if (nbt.contains(tagKey)) {
+                    manager.fromNbt(nbt.getCompound(tagKey), registries);
+                }
+            } else {
+                manager.readNetworks(nbt.getCompound(tagKey), registries);
             }
             managers.put(entry.getValue(), manager);
         }
-        return new PipeNetworks(managers);
+
+        var networks = new PipeNetworks(managers, legacy);
+        for (long region : nbt.getLongArray("shards")) {
+            networks.shardRegions.add(region);
+        }
+        return networks;
     }
 
     public static PipeNetworks get(ServerLevel world) {
         PipeNetworks networks = world.getDataStorage().computeIfAbsent(FACTORY, NAME);
-        networks.setDirty();
+        if (!networks.shardsLoaded) {
+            networks.loadShards(world);
+        }
         return networks;
     }
 
+    private static String getShardName(long region) {
+        return NAME + "_r." + ChunkPos.getX(region) + "." + ChunkPos.getZ(region);
+    }
+
+    private Shard getShard(ServerLevel world, long region) {
+        Shard shard = world.getDataStorage().computeIfAbsent(SHARD_FACTORY, getShardName(region));
+        shard.owner = this;
+        shard.region = region;
+        return shard;
+    }
+
+    /**
+     * Load the nodes of every shard. This cannot be done lazily when the chunks of
+     * a region are loaded, because splitting or merging networks needs all their
+     * nodes and links.
+     */
+    private void loadShards(ServerLevel world) {
+        shardsLoaded = true;
+
+        for (LongIterator it = shardRegions.iterator(); it.hasNext();) {
+            CompoundTag shardTag = getShard(world, it.nextLong()).takeLoadedTag();
+            if (shardTag != null) {
+                for (Map.Entry<PipeNetworkType, PipeNetworkManager> entry : managers.entrySet()) {
+                    entry.getValue().readNodes(shardTag.getIntArray(entry.getKey().getIdentifier().toString()));
+                }
+            }
+        }
+        for (PipeNetworkManager manager : managers.values()) {
+            manager.finishLoading();
+        }
+    }
+
+    /**
+     * Make sure that every unsaved region has a shard that will be saved.
+     */
+    private void createShards(ServerLevel world) {
+        preparedShards = null;
+
+        LongSet unsavedRegions = new LongOpenHashSet();
+        for (PipeNetworkManager manager : managers.values()) {
+            manager.collectUnsavedRegions(unsavedRegions);
+        }
+        for (LongIterator it = unsavedRegions.iterator(); it.hasNext();) {
+            long region = it.nextLong();
+            if (shardRegions.add(region)) {
+                // Discard the contents of a stale shard file, if there is one.
+                getShard(world, region).takeLoadedTag();
+                setDirty();
+            }
+        }
+    }
+
+    private boolean isRegionUnsaved(long region) {
+        for (PipeNetworkManager manager : managers.values()) {
+            if (manager.isRegionUnsaved(region)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private CompoundTag saveShard(long region) {
+        if (preparedShards == null) {
+            LongSet unsavedRegions = new LongOpenHashSet();
+            for (PipeNetworkManager manager : managers.values()) {
+                manager.collectUnsavedRegions(unsavedRegions);
+            }
+
+            preparedShards = new Long2ObjectOpenHashMap<>();
+            for (Map.Entry<PipeNetworkType, PipeNetworkManager> entry : managers.entrySet()) {
+                Long2ObjectMap<IntArrayList> nodes = new Long2ObjectOpenHashMap<>();
+                entry.getValue().writeNodes(unsavedRegions, nodes);
+                for (var nodesEntry : nodes.long2ObjectEntrySet()) {
+                    preparedShards.computeIfAbsent(nodesEntry.getLongKey(), r -> new CompoundTag())
+                            .putIntArray(entry.getKey().getIdentifier().toString(), nodesEntry.getValue().toIntArray());
+                }
+            }
+        }
+
+        for (PipeNetworkManager manager : managers.values()) {
+            manager.markRegionSaved(region);
+        }
+        var tag = preparedShards.remove(region);
+        return tag == null ? new CompoundTag() : tag;
+    }
+
     public static void scheduleLoadPipe(Level world, PipeBlockEntity pipe) {
         if (world instanceof ServerLevel sw) {
             if (!sw.getServer().isSameThread()) {
@@ -98,6 +247,39 @@ public class PipeNetworks extends MISavedData {
         }
     }
 
+    static void scheduleConnectionsSync(ServerLevel world, PipeBlockEntity pipe) {
+        PipeNetworks.get(world).pendingConnectionSyncs.computeIfAbsent(ChunkPos.asLong(pipe.getBlockPos()), chunk -> new LinkedHashSet<>())
+                .add(pipe);
+    }
+
+    private void flushConnectionSyncs(ServerLevel world) {
+        for (var chunkEntry : pendingConnectionSyncs.long2ObjectEntrySet()) {
+            List<PipeConnectionsSyncPacket.Entry> entries = new ArrayList<>();
+            for (PipeBlockEntity pipe : chunkEntry.getValue()) {
+                if (pipe.isRemoved()) {
+                    continue;
+                }
+                List<ResourceLocation> types = new ArrayList<>();
+                IntList connections = new IntArrayList();
+                pipe.writeConnectionsUpdate(types, connections);
+                entries.add(new PipeConnectionsSyncPacket.Entry(pipe.getBlockPos(), types.toArray(ResourceLocation[]::new), connections.toIntArray()));
+            }
+            if (!entries.isEmpty()) {
+                ChunkPos chunk = new ChunkPos(chunkEntry.getLongKey());
+                new PipeConnectionsSyncPacket(chunk, entries).sendToPlayersTrackingChunk(world, chunk);
+            }
+        }
+        pendingConnectionSyncs.clear();
+    }
+
+    private static void onChunkLoadChanged(LevelAccessor level, ChunkPos chunkPos) {
+        if (level instanceof ServerLevel world) {
+            for (PipeNetworkManager manager : PipeNetworks.get(world).managers.values()) {
+                manager.onChunkLoadChanged(chunkPos.toLong());
+            }
+        }
+    }
+
     static {
         NeoForge.EVENT_BUS.addListener(LevelTickEvent.Post.class, event -> {
             if (!(event.getLevel() instanceof ServerLevel world)) {
@@ -120,6 +302,62 @@ public class PipeNetworks extends MISavedData {
             for (PipeNetworkManager manager : networks.managers.values()) {
                 manager.tickNetworks(world);
             }
+            EnergyGrid.tick(networks.managers);
+
+            networks.flushConnectionSyncs(world);
+
+            networks.createShards(world);
+        });
+        NeoForge.EVENT_BUS.addListener(ServerStoppingEvent.class, event -> {
+            for (ServerLevel world : event.getServer().getAllLevels()) {
+                PipeNetworks.get(world).createShards(world);
+            }
         });
+
+        // Track which spanned chunks might change ticking status, so that managers don't have to poll every chunk every tick.
+        NeoForge.EVENT_BUS.addListener(ChunkTicketLevelUpdatedEvent.class, event -> {
+            for (PipeNetworkManager manager : PipeNetworks.get(event.getLevel()).managers.values()) {
+                manager.onChunkTicketLevelChanged(event.getChunkPos(), event.getNewTicketLevel());
+            }
+        });
+        NeoForge.EVENT_BUS.addListener(ChunkEvent.Load.class, event -> onChunkLoadChanged(event.getLevel(), event.getChunk().getPos()));
+        NeoForge.EVENT_BUS.addListener(ChunkEvent.Unload.class, event -> onChunkLoadChanged(event.getLevel(), event.getChunk().getPos()));
+    }
+
+    /**
+     * Nodes and links of all pipe types in one region. Its contents are only read
+     * once when the level is loaded, afterwards they are computed from the managers
+     * when the shard is saved.
+     */
+    private static class Shard extends MISavedData {
+        @Nullable
+        private CompoundTag loadedTag;
+        private PipeNetworks owner;
+        private long region;
+
+        private Shard() {
+        }
+
+        private Shard(CompoundTag tag, HolderLookup.Provider registries) {
+            this.loadedTag = tag;
+        }
+
+        @Nullable
+        private CompoundTag takeLoadedTag() {
+            var tag = loadedTag;
+            loadedTag = null;
+            return tag;
+        }
+
+        @Override
+        public boolean isDirty() {
+            return super.isDirty() || owner != null && owner.isRegionUnsaved(region);
+        }
+
+        @Override
+        public CompoundTag save(CompoundTag nbt, HolderLookup.Provider registries) {
+            nbt.merge(owner.saveShard(region));
+            return nbt;
+        }
     }
 }
@@ -24,10 +24,18 @@
 package aztech.modern_industrialization.pipes.item;
 
 import aztech.modern_industrialization.MI;
+import aztech.modern_industrialization.inventory.MIItemStorage;
+import aztech.modern_industrialization.thirdparty.fabrictransfer.api.bridge.SlotItemHandler;
+import aztech.modern_industrialization.thirdparty.fabrictransfer.api.item.ItemVariant;
+import aztech.modern_industrialization.thirdparty.fabrictransfer.api.storage.Storage;
+import aztech.modern_industrialization.thirdparty.fabrictransfer.api.storage.StorageUtil;
+import aztech.modern_industrialization.thirdparty.fabrictransfer.api.storage.StorageView;
+import aztech.modern_industrialization.thirdparty.fabrictransfer.api.transaction.Transaction;
 import java.util.List;
 import net.minecraft.server.level.ServerLevel;
 import net.neoforged.neoforge.items.IItemHandler;
 import net.neoforged.neoforge.items.ItemHandlerHelper;
+import org.jetbrains.annotations.Nullable;
 
 interface IItemSink {
     static int listMoveAll(List<? extends IItemSink> sinks, ServerLevel world, ExtractionSource target, int sourceSlot, int maxAmount) {
@@ -54,10 +62,50 @@ interface IItemSink {
      */
     int moveAll(ServerLevel world, ExtractionSource source, int sourceSlot, int maxAmount);
 
-    record HandlerWrapper(IItemHandler handler) implements IItemSink {
+    /**
+     * Return the storage behind an item handler exposed by MI, or null for other handlers.
+     */
+    @Nullable
+    static Storage<ItemVariant> getMIStorage(IItemHandler handler) {
+        if (handler instanceof MIItemStorage.ItemHandler miHandler) {
+            return miHandler.getStorage();
+        } else if (handler instanceof SlotItemHandler slotHandler) {
+            return slotHandler.storage();
+        }
+        return null;
+    }
+
+    /**
+     * Return the view of a slot of an item handler exposed by MI, or null for other handlers.
+     */
+    @Nullable
+    static StorageView<ItemVariant> getMISlot(IItemHandler handler, int slot) {
+        if (handler instanceof MIItemStorage.ItemHandler miHandler) {
+            return miHandler.getSlot(slot);
+        } else if (handler instanceof SlotItemHandler slotHandler) {
+            return slotHandler.storage();
+        }
+        return null;
+    }
+
+    /**
+     * @param storage MI storage behind the handler if there is one, to move items without intermediate item stacks
+     */
+    record HandlerWrapper(IItemHandler handler, @Nullable Storage<ItemVariant> storage) implements IItemSink {
+        HandlerWrapper(IItemHandler handler) {
+            this(handler, getMIStorage(handler));
+        }
+
         @Override
         public int moveAll(ServerLevel world, ExtractionSource source, int sourceSlot, int maxToMove) {
             IItemHandler sourceHandler = source.storage();
+            if (storage != null) {
+                var sourceView = getMISlot(sourceHandler, sourceSlot);
+                if (sourceView != null) {
+                    return moveDirect(sourceView, maxToMove);
+                }
+            }
+
             int moved = 0;
 
             // Repeated extraction because extractItem limits to max stack size
@@ -103,5 +151,25 @@ interface IItemSink {
 
             return moved;
         }
+
+        /**
+         * Move items between two MI storages in a single transaction.
+         */
+        private int moveDirect(StorageView<ItemVariant> sourceView, int maxToMove) {
+            ItemVariant resource = sourceView.getResource();
+            if (resource.isBlank() || maxToMove <= 0) {
+                return 0;
+            }
+
+            try (var tx = Transaction.openOuter()) {
+                long maxExtracted = StorageUtil.simulateExtract(sourceView, resource, maxToMove, tx);
+                long accepted = storage.insert(resource, maxExtracted, tx);
+                if (accepted > 0 && sourceView.extract(resource, accepted, tx) == accepted) {
+                    tx.commit();
+                    return (int) accepted;
+                }
+            }
+            return 0;
+        }
     }
 }
@@ -23,11 +23,14 @@
  */
 package aztech.modern_industrialization.pipes.item;
 
+import aztech.modern_industrialization.MIConfig;
 import aztech.modern_industrialization.inventory.WhitelistedItemStorage;
 import aztech.modern_industrialization.pipes.api.PipeNetwork;
 import aztech.modern_industrialization.pipes.api.PipeNetworkData;
+import it.unimi.dsi.fastutil.HashCommon;
 import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Reference2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.objects.ReferenceOpenHashSet;
 import java.util.*;
 import java.util.concurrent.ThreadLocalRandom;
@@ -38,16 +41,56 @@ import net.minecraft.core.BlockPos;
 import net.minecraft.server.level.ServerLevel;
 import net.minecraft.world.item.Item;
 import net.minecraft.world.item.ItemStack;
-import net.neoforged.neoforge.capabilities.BlockCapabilityCache;
-import net.neoforged.neoforge.capabilities.Capabilities;
 import net.neoforged.neoforge.items.IItemHandler;
+import org.jetbrains.annotations.Nullable;
 
 public class ItemNetwork extends PipeNetwork {
     public static final int TICK_RATE = 60;
-    private static final ReferenceOpenHashSet<Item> WHITELIST_CACHED_SET = new ReferenceOpenHashSet<>();
+    /**
+     * Number of extraction sources processed per tick when transfers of large networks are split.
+     */
+    private static final int EXTRACTIONS_PER_TICK = 64;
 
     int inactiveTicks = 0;
     long lastMovedItems = 0;
+    /**
+     * Number of ticks over which the extraction sources of the current transfer cycle are split.
+     */
+    private int transferParts = 0;
+    /**
+     * Part from which {@link #extractionSources} are split, which is not 0 if they were rebuilt in the middle of the
+     * transfer cycle.
+     */
+    private int firstTransferPart = 0;
+    /**
+     * Game time at which the current transfer cycle started.
+     */
+    private long transferCycleStart = Long.MIN_VALUE;
+
+    /**
+     * Whether {@link #extractionSources} and {@link #insertBuckets} are up-to-date.
+     */
+    private boolean transferCachesValid = false;
+    /**
+     * Loaded extraction sources, sorted by increasing extract priority.
+     */
+    private final List<ExtractionSource> extractionSources = new ArrayList<>();
+    /**
+     * Loaded insert targets, bucketed by insert priority and sorted from high to low priority.
+     */
+    private final List<PriorityBucket> insertBuckets = new ArrayList<>();
+    /**
+     * Number of connections with a storage, for statistics.
+     */
+    private int endpointCount = 0;
+    /**
+     * Whether the aggregates of {@link #insertBuckets} are up-to-date.
+     */
+    private boolean routingTableValid = false;
+    private final ReferenceOpenHashSet<Item> whitelistScratch = new ReferenceOpenHashSet<>();
+    // Statistics
+    private int routingTableVersion = 0;
+    private long transferCycles = 0;
 
     public ItemNetwork(int id, PipeNetworkData data) {
         super(id, data == null ? new ItemNetworkData() : data);
@@ -55,39 +98,148 @@ public class ItemNetwork extends PipeNetwork {
 
     @Override
     public void tick(ServerLevel world) {
-        // Only tick once
-        if (inactiveTicks == 0) {
-            doNetworkTransfer(world);
-            inactiveTicks = TICK_RATE;
+        // Transfer cycles of different networks are spread over the TICK_RATE window.
+        int slot = getScheduleSlot(world.getGameTime());
+        if (slot == 0) {
+            startTransferCycle(world);
         }
-        --inactiveTicks;
+        if (slot < transferParts) {
+            doNetworkTransfer(world, slot);
+        }
+        inactiveTicks = TICK_RATE - 1 - slot;
     }
 
-    private void doNetworkTransfer(ServerLevel world) {
-        List<ExtractionSource> extractionSources = new ArrayList<>();
+    /**
+     * Offset of this network in the transfer window, derived from its id so that
+     * networks created or loaded together don't all transfer on the same tick.
+     */
+    private int getSchedulePhase() {
+        return Math.floorMod(HashCommon.mix(id), TICK_RATE);
+    }
+
+    /**
+     * @return the position of the given tick in the transfer cycle of this network, 0 being the start of the cycle
+     */
+    private int getScheduleSlot(long gameTime) {
+        return (int) Math.floorMod(gameTime + getSchedulePhase(), TICK_RATE);
+    }
+
+    /**
+     * Add the number of extraction sources of this network to {@code load}, indexed by {@code gameTime % TICK_RATE}.
+     */
+    public void addScheduleLoad(int[] load) {
+        int cycleStart = Math.floorMod(-getSchedulePhase(), TICK_RATE);
+        int parts = Math.max(1, transferParts);
+        for (int part = 0; part < parts; ++part) {
+            // Sources i with i % parts == part
+            int sources = (extractionSources.size() - part + parts - 1) / parts;
+            load[(cycleStart + part) % TICK_RATE] += sources;
+        }
+    }
+
+    @Override
+    protected void onTickingNodesChanged() {
+        invalidateTransferCaches();
+    }
+
+    /**
+     * Invalidate the cached extraction sources and insert targets. Must be called
+     * when a connection is added, removed or changes priority or type, or when the
+     * capability of an adjacent block is invalidated.
+     */
+    void invalidateTransferCaches() {
+        transferCachesValid = false;
+        routingTableValid = false;
+    }
+
+    @Override
+    public int getEndpointCount() {
+        return endpointCount;
+    }
+
+    private void rebuildTransferCaches(ServerLevel world) {
+        extractionSources.clear();
+        insertBuckets.clear();
+        endpointCount = 0;
+        Int2ObjectMap<PriorityBucket> priorityBuckets = new Int2ObjectOpenHashMap<>();
+
         for (var entry : iterateTickingNodes()) {
             BlockPos pos = entry.getPos();
             ItemNetworkNode itemNode = (ItemNetworkNode) entry.getNode();
             for (ItemNetworkNode.ItemConnection connection : itemNode.connections) {
-                if (connection.canExtract()) {
-                    var queryPos = pos.relative(connection.direction);
-                    var querySide = connection.direction.getOpposite();
-
-                    var source = world.getCapability(Capabilities.ItemHandler.BLOCK, queryPos, querySide);
+                var handler = connection.getCapabilityCache(world, pos).getCapability();
+                if (handler == null) {
+                    continue;
+                }
+                endpointCount++;
 
-                    if (source != null) {
-                        extractionSources.add(new ExtractionSource(connection, source, queryPos, querySide));
-                    }
+                if (connection.canExtract()) {
+                    extractionSources.add(new ExtractionSource(connection, handler, pos.relative(connection.direction),
+                            connection.direction.getOpposite()));
+                }
+                if (connection.canInsert()) {
+                    PriorityBucket bucket = priorityBuckets.computeIfAbsent(connection.insertPriority, PriorityBucket::new);
+                    bucket.targets.add(new InsertTarget(connection, new IItemSink.HandlerWrapper(handler)));
                 }
             }
         }
         // Lower priority extracts first.
         extractionSources.sort(Comparator.comparing(et -> et.connection().extractPriority));
 
-        // Do the actual transfer.
-        var insertTargets = getAggregatedInsertTargets(world);
+        insertBuckets.addAll(priorityBuckets.values());
+        // Now we sort by priority, high to low
+        insertBuckets.sort(Comparator.comparingInt(pb -> -pb.priority));
+
+        transferCachesValid = true;
+    }
+
+    /**
+     * @return true if the caches were rebuilt
+     */
+    private boolean refreshTransferCaches(ServerLevel world) {
+        // Refresh the ticking nodes first, in case that invalidates the caches.
+        iterateTickingNodes();
+        if (!transferCachesValid) {
+            rebuildTransferCaches(world);
+            return true;
+        }
+        return false;
+    }
+
+    private void startTransferCycle(ServerLevel world) {
+        refreshTransferCaches(world);
+        transferCycles++;
         lastMovedItems = 0;
-        for (ExtractionSource target : extractionSources) {
+        firstTransferPart = 0;
+        transferCycleStart = world.getGameTime();
+
+        if (MIConfig.getConfig().splitLargeItemNetworkTransfers) {
+            transferParts = Math.min(TICK_RATE, Math.max(1, Math.ceilDiv(extractionSources.size(), EXTRACTIONS_PER_TICK)));
+        } else {
+            transferParts = 1;
+        }
+    }
+
+    /**
+     * Process the extraction sources of the given part of the current transfer cycle.
+     * Each part keeps the extract priority order, and every source is processed once per cycle.
+     */
+    private void doNetworkTransfer(ServerLevel world, int part) {
+        if (refreshTransferCaches(world)) {
+            // The sources were rebuilt and re-sorted in the middle of the cycle: split them again over the remaining
+            // parts. Sources that were already processed in this cycle are skipped below.
+            firstTransferPart = part;
+        }
+        int parts = transferParts - firstTransferPart;
+
+        // Do the actual transfer.
+        var insertTargets = getAggregatedInsertTargets();
+        for (int i = part - firstTransferPart; i < extractionSources.size(); i += parts) {
+            ExtractionSource target = extractionSources.get(i);
+            if (target.connection().lastTransferCycle == transferCycleStart) {
+                continue;
+            }
+            target.connection().lastTransferCycle = transferCycleStart;
             // Lower priority extracts first, and pipes can only move items to things that have >= priorities.
             // So we can just pop insert targets at the end of the list if they have a priority smaller than the current extraction target.
             while (insertTargets.size() > 0 && target.connection().extractPriority > insertTargets.get(insertTargets.size() - 1).getPriority()) {
@@ -95,8 +247,10 @@ public class ItemNetwork extends PipeNetwork {
             }
 
             try {
-                lastMovedItems += moveAll(world, target, insertTargets, target.connection()::canStackMoveThrough,
+                long moved = moveAll(world, target, insertTargets, target.connection()::canStackMoveThrough,
                         target.connection().getMoves());
+                lastMovedItems += moved;
+                reportMoved(moved);
             } catch (Exception exception) {
                 var crashReport = CrashReport.forThrowable(exception, "Moving items in a pipe network");
                 crashReport.addCategory("Block being extracted from:")
@@ -131,51 +285,37 @@ public class ItemNetwork extends PipeNetwork {
     }
 
     /**
-     * Find all connections in which to insert that are loaded.
+     * Return the insert aggregates for this transfer cycle, high priority first.
+     * The routing table is only rebuilt if it was invalidated or if the state of a
+     * target changed since the last cycle.
      */
-    private List<Aggregate> getAggregatedInsertTargets(ServerLevel world) {
-        Int2ObjectMap<PriorityBucket> priorityBuckets = new Int2ObjectOpenHashMap<>();
-
-        for (var entry : iterateTickingNodes()) {
-            ItemNetworkNode node = (ItemNetworkNode) entry.getNode();
-            for (ItemNetworkNode.ItemConnection connection : node.connections) {
-                if (connection.canInsert()) {
-                    if (connection.cache == null) {
-                        connection.cache = BlockCapabilityCache.create(Capabilities.ItemHandler.BLOCK, world,
-                                entry.getPos().relative(connection.direction), connection.direction.getOpposite());
-                    }
-                    var target = connection.cache.getCapability();
-                    if (target != null && target.getSlots() > 0) {
-                        PriorityBucket bucket = priorityBuckets.computeIfAbsent(connection.insertPriority, PriorityBucket::new);
-                        InsertTarget it = new InsertTarget(connection, new IItemSink.HandlerWrapper(target));
-
-                        if (connection.whitelist || (target instanceof WhitelistedItemStorage wis && wis.currentlyWhitelisted())) {
-                            bucket.whitelist.add(it);
-                        } else {
-                            bucket.blacklist.add(it);
-                        }
-                    }
-                }
+    private List<Aggregate> getAggregatedInsertTargets() {
+        // Whitelisting of storages and slot counts can change without invalidating the capability, so check them every time.
+        boolean changed = !routingTableValid;
+        for (PriorityBucket pb : insertBuckets) {
+            for (InsertTarget it : pb.targets) {
+                changed |= it.refreshState(whitelistScratch);
             }
         }
-
-        PriorityBucket[] sortedBuckets = priorityBuckets.values().toArray(new PriorityBucket[0]);
-        // Now we sort by priority, high to low
-        Arrays.sort(sortedBuckets, Comparator.comparingInt(pb -> -pb.priority));
+        if (changed) {
+            rebuildRoutingTable();
+        }
 
         List<Aggregate> targets = new ArrayList<>();
         Random random = ThreadLocalRandom.current();
 
-        for (PriorityBucket pb : sortedBuckets) {
-            int whitelistSize = pb.whitelist.size();
-            int blacklistSize = pb.blacklist.size();
-            if (whitelistSize > 0) {
-                Collections.shuffle(pb.whitelist);
-                targets.add(new WhitelistAggregate(pb.priority, pb.whitelist));
+        for (PriorityBucket pb : insertBuckets) {
+            // Randomize which target of the aggregates is tried first.
+            int whitelistSize = 0, blacklistSize = 0;
+            if (pb.whitelist != null) {
+                pb.whitelist.rotation = random.nextInt(Integer.MAX_VALUE);
+                whitelistSize = pb.whitelist.targets.size();
+                targets.add(pb.whitelist);
             }
-            if (blacklistSize > 0) {
-                Collections.shuffle(pb.blacklist);
-                targets.add(new BlacklistAggregate(pb.priority, pb.blacklist));
+            if (pb.blacklist != null) {
+                pb.blacklist.rotation = random.nextInt(Integer.MAX_VALUE);
+                blacklistSize = pb.blacklist.targets.size();
+                targets.add(pb.blacklist);
             }
 
             // Ensure equal chance to receive items on average.
@@ -189,10 +329,45 @@ public class ItemNetwork extends PipeNetwork {
         return targets;
     }
 
+    /**
+     * Invalidate the routing table. Must be called when the whitelist or the filter of a connection changes.
+     */
+    void invalidateRoutingTable() {
+        routingTableValid = false;
+    }
+
+    private void rebuildRoutingTable() {
+        for (PriorityBucket pb : insertBuckets) {
+            List<InsertTarget> whitelist = new ArrayList<>();
+            List<InsertTarget> blacklist = new ArrayList<>();
+            for (InsertTarget it : pb.targets) {
+                if (it.active) {
+                    (it.whitelisted ? whitelist : blacklist).add(it);
+                }
+            }
+            pb.whitelist = whitelist.isEmpty() ? null : new WhitelistAggregate(pb.priority, whitelist);
+            pb.blacklist = blacklist.isEmpty() ? null : new BlacklistAggregate(pb.priority, blacklist);
+        }
+
+        routingTableValid = true;
+        routingTableVersion++;
+    }
+
+    public int getRoutingTableVersion() {
+        return routingTableVersion;
+    }
+
+    public long getTransferCycles() {
+        return transferCycles;
+    }
+
     private static class PriorityBucket {
         private final int priority;
-        private final List<InsertTarget> whitelist = new ArrayList<>();
-        private final List<InsertTarget> blacklist = new ArrayList<>();
+        private final List<InsertTarget> targets = new ArrayList<>();
+        @Nullable
+        private WhitelistAggregate whitelist;
+        @Nullable
+        private BlacklistAggregate blacklist;
 
         private PriorityBucket(int priority) {
             this.priority = priority;
@@ -206,9 +381,14 @@ public class ItemNetwork extends PipeNetwork {
     private static class WhitelistAggregate implements Aggregate {
         private final int priority;
         // Used when the inserted item doesn't have NBT
-        private final Map<Item, List<IItemSink>> map = new IdentityHashMap<>();
-        // Used when the inserted item has NBT.
+        private final Reference2ObjectOpenHashMap<Item, List<InsertTarget>> map = new Reference2ObjectOpenHashMap<>();
+        // Used when the inserted item has NBT, keyed by ItemStack#hashItemAndComponents. Hash collisions are filtered out when inserting.
+        private final Int2ObjectOpenHashMap<List<InsertTarget>> componentMap = new Int2ObjectOpenHashMap<>();
+        // Whitelisted storages don't filter NBT.
+        private final List<InsertTarget> storageTargets = new ArrayList<>();
+        // All the targets, for statistics.
         private final List<InsertTarget> targets;
+        private int rotation;
 
         WhitelistAggregate(int priority, List<InsertTarget> targets) {
             this.priority = priority;
@@ -217,33 +397,61 @@ public class ItemNetwork extends PipeNetwork {
                 if (target.connection.whitelist) {
                     ItemNetworkNode.ItemConnection conn = target.connection;
                     for (ItemStack stack : conn.stacks) {
+                        if (stack.isEmpty()) {
+                            continue;
+                        }
                         if (stack.isComponentsPatchEmpty()) {
-                            map.computeIfAbsent(stack.getItem(), v -> new ArrayList<>()).add(target.target);
+                            addRoute(map.computeIfAbsent(stack.getItem(), v -> new ArrayList<>()), target);
+                        } else {
+                            addRoute(componentMap.computeIfAbsent(ItemStack.hashItemAndComponents(stack), v -> new ArrayList<>()), target);
                         }
                     }
-                } else if (target.target instanceof WhitelistedItemStorage wis) {
-                    WHITELIST_CACHED_SET.clear();
-                    wis.getWhitelistedItems(WHITELIST_CACHED_SET);
-                    for (Item item : WHITELIST_CACHED_SET) {
-                        map.computeIfAbsent(item, v -> new ArrayList<>()).add(target.target);
+                } else if (target.target.handler() instanceof WhitelistedItemStorage) {
+                    for (Item item : target.whitelistedItems) {
+                        addRoute(map.computeIfAbsent(item, v -> new ArrayList<>()), target);
                     }
+                    storageTargets.add(target);
                 } else {
                     throw new IllegalStateException("Internal item pipe error! Should never happen!");
                 }
             }
         }
 
+        private static void addRoute(List<InsertTarget> route, InsertTarget target) {
+            // The same item can be whitelisted multiple times by the same connection.
+            if (route.isEmpty() || route.get(route.size() - 1) != target) {
+                route.add(target);
+            }
+        }
+
         @Override
         public int moveAll(ServerLevel world, ExtractionSource source, int sourceSlot, int maxAmount) {
             var stack = source.storage().getStackInSlot(sourceSlot);
 
             if (!stack.isComponentsPatchEmpty()) {
-                return insertTargets(targets, world, source, sourceSlot, maxAmount);
+                int moved = 0;
+                List<InsertTarget> targets = componentMap.get(ItemStack.hashItemAndComponents(stack));
+                if (targets != null) {
+                    moved += insertTargets(targets, rotation, world, source, sourceSlot, maxAmount);
+                }
+                if (moved < maxAmount) {
+                    moved += insertTargets(storageTargets, rotation, world, source, sourceSlot, maxAmount - moved);
+                }
+                return moved;
             }
 
-            List<IItemSink> targets = map.get(stack.getItem());
+            List<InsertTarget> targets = map.get(stack.getItem());
             if (targets != null) {
-                return IItemSink.listMoveAll(targets, world, source, sourceSlot, maxAmount);
+                // No need to check the filters: the item is whitelisted by construction.
+                int moved = 0;
+                int size = targets.size();
+                for (int i = 0; i < size; ++i) {
+                    moved += targets.get((i + rotation) % size).target.moveAll(world, source, sourceSlot, maxAmount - moved);
+                    if (moved >= maxAmount) {
+                        break;
+                    }
+                }
+                return moved;
             }
             return 0;
         }
@@ -257,6 +465,7 @@ public class ItemNetwork extends PipeNetwork {
     private static class BlacklistAggregate implements Aggregate {
         private final int priority;
         private final List<InsertTarget> targets;
+        private int rotation;
 
         private BlacklistAggregate(int priority, List<InsertTarget> targets) {
             this.priority = priority;
@@ -265,7 +474,7 @@ public class ItemNetwork extends PipeNetwork {
 
         @Override
         public int moveAll(ServerLevel world, ExtractionSource source, int sourceSlot, int maxAmount) {
-            return insertTargets(targets, world, source, sourceSlot, maxAmount);
+            return insertTargets(targets, rotation, world, source, sourceSlot, maxAmount);
         }
 
         @Override
@@ -274,10 +483,16 @@ public class ItemNetwork extends PipeNetwork {
         }
     }
 
-    private static int insertTargets(List<InsertTarget> targets, ServerLevel world, ExtractionSource source, int sourceSlot, int maxAmount) {
+    /**
+     * Try to insert into the targets, starting at index {@code rotation % targets.size()} and wrapping around.
+     */
+    private static int insertTargets(List<InsertTarget> targets, int rotation, ServerLevel world, ExtractionSource source, int sourceSlot,
+            int maxAmount) {
         int moved = 0;
+        int size = targets.size();
 
-        for (InsertTarget target : targets) {
+        for (int i = 0; i < size; ++i) {
+            InsertTarget target = targets.get((i + rotation) % size);
             var stack = source.storage().getStackInSlot(sourceSlot);
             if (stack.isEmpty()) {
                 break;
@@ -294,6 +509,47 @@ public class ItemNetwork extends PipeNetwork {
         return moved;
     }
 
-    private record InsertTarget(ItemNetworkNode.ItemConnection connection, IItemSink target) {
+    private static class InsertTarget {
+        private final ItemNetworkNode.ItemConnection connection;
+        private final IItemSink.HandlerWrapper target;
+        /**
+         * State as of the last routing table check.
+         */
+        private boolean active, whitelisted;
+        private final ReferenceOpenHashSet<Item> whitelistedItems = new ReferenceOpenHashSet<>();
+
+        private InsertTarget(ItemNetworkNode.ItemConnection connection, IItemSink.HandlerWrapper target) {
+            this.connection = connection;
+            this.target = target;
+        }
+
+        /**
+         * Refresh the state of this target.
+         *
+         * @param scratch empty set, left empty after the call
+         * @return true if the state changed and the routing table must be rebuilt
+         */
+        private boolean refreshState(ReferenceOpenHashSet<Item> scratch) {
+            var handler = target.handler();
+            boolean newActive = handler.getSlots() > 0;
+            boolean newWhitelisted = connection.whitelist;
+            boolean changed = false;
+
+            if (!newWhitelisted && handler instanceof WhitelistedItemStorage wis && wis.currentlyWhitelisted()) {
+                newWhitelisted = true;
+                wis.getWhitelistedItems(scratch);
+                if (!scratch.equals(whitelistedItems)) {
+                    whitelistedItems.clear();
+                    whitelistedItems.addAll(scratch);
+                    changed = true;
+                }
+                scratch.clear();
+            }
+
+            changed |= newActive != active || newWhitelisted != whitelisted;
+            active = newActive;
+            whitelisted = newWhitelisted;
+            return changed;
+        }
     }
 }
@@ -72,7 +72,7 @@ public class ItemNetworkNode extends PipeNetworkNode {
     public void updateConnections(Level world, BlockPos pos) {
         // Remove the connection to the outside world if a connection to another pipe is made.
         var levelNetworks = PipeNetworks.get((ServerLevel) world);
-        connections.removeIf(connection -> {
+        boolean removed = connections.removeIf(connection -> {
             for (var type : PipeNetworkType.getTypes().values()) {
                 var manager = levelNetworks.getOptionalManager(type);
                 if (manager != null && manager.hasLink(pos, connection.direction)) {
@@ -82,6 +82,21 @@ public class ItemNetworkNode extends PipeNetworkNode {
             }
             return false;
         });
+        if (removed) {
+            invalidateTransferCaches();
+        }
+    }
+
+    private void invalidateTransferCaches() {
+        if (network instanceof ItemNetwork itemNetwork) {
+            itemNetwork.invalidateTransferCaches();
+        }
+    }
+
+    private void invalidateRoutingTable() {
+        if (network instanceof ItemNetwork itemNetwork) {
+            itemNetwork.invalidateRoutingTable();
+        }
     }
 
     private boolean canConnect(Level world, BlockPos pos, Direction direction) {
@@ -115,6 +130,7 @@ public class ItemNetworkNode extends PipeNetworkNode {
                     conn.dropUpgrades(world, pos);
                     connections.remove(i);
                 }
+                invalidateTransferCaches();
                 return;
             }
         }
@@ -132,6 +148,7 @@ public class ItemNetworkNode extends PipeNetworkNode {
         if (canConnect(world, pos, direction)) {
             var conn = new ItemConnection(direction, BLOCK_IN, 0, -10);
             connections.add(conn);
+            invalidateTransferCaches();
             // Apply memory card in the off-hand.
             var offHandItem = player.getOffhandItem();
             if (MIItem.CONFIG_CARD.is(offHandItem)) {
@@ -252,7 +269,11 @@ public class ItemNetworkNode extends PipeNetworkNode {
         final ItemStack[] stacks = new ItemStack[ItemPipeInterface.SLOTS];
         final Map<Item, List<ItemStack>> stacksCache = new IdentityHashMap<>();
         private ItemStack upgradeStack = ItemStack.EMPTY;
-        BlockCapabilityCache<IItemHandler, @Nullable Direction> cache = null;
+        private BlockCapabilityCache<IItemHandler, @Nullable Direction> cache = null;
+        /**
+         * Game time at which the transfer cycle that last extracted from this connection started.
+         */
+        long lastTransferCycle = Long.MIN_VALUE;
 
         private ItemConnection(Direction direction, PipeEndpointType type, int insertPriority, int extractPriority) {
             this.direction = direction;
@@ -264,6 +285,18 @@ public class ItemNetworkNode extends PipeNetworkNode {
             }
         }
 
+        /**
+         * Capability cache for the adjacent block, used for both insertion and extraction.
+         * Invalidates the transfer caches of the network when the capability changes.
+         */
+        BlockCapabilityCache<IItemHandler, @Nullable Direction> getCapabilityCache(ServerLevel world, BlockPos pos) {
+            if (cache == null) {
+                cache = BlockCapabilityCache.create(Capabilities.ItemHandler.BLOCK, world, pos.relative(direction), direction.getOpposite(),
+                        () -> connections.contains(this), ItemNetworkNode.this::invalidateTransferCaches);
+            }
+            return cache;
+        }
+
         private void refreshStacksCache() {
             stacksCache.clear();
             for (ItemStack stack : stacks) {
@@ -342,6 +375,7 @@ public class ItemNetworkNode extends PipeNetworkNode {
                 }
             }
             refreshStacksCache();
+            invalidateTransferCaches();
 
             ItemStack requestedUpgrade = config.upgrade().copy();
             if (player.getAbilities().instabuild) {
@@ -388,6 +422,7 @@ public class ItemNetworkNode extends PipeNetworkNode {
                     @Override
                     public void setWhitelist(boolean whitelist) {
                         ItemConnection.this.whitelist = whitelist;
+                        invalidateRoutingTable();
                         helper.callMarkDirty();
                     }
 
@@ -400,6 +435,7 @@ public class ItemNetworkNode extends PipeNetworkNode {
                     public void setStack(int slot, ItemStack stack) {
                         stacks[slot] = stack;
                         refreshStacksCache();
+                        invalidateRoutingTable();
                         helper.callMarkDirty();
                     }
 
@@ -423,6 +459,7 @@ public class ItemNetworkNode extends PipeNetworkNode {
                     public void setConnectionType(int type) {
                         if (0 <= type && type < 3) {
                             ItemConnection.this.type = decodeConnectionType(type);
+                            invalidateTransferCaches();
                             helper.callMarkDirty();
                             helper.callSync();
                         }
@@ -440,6 +477,7 @@ public class ItemNetworkNode extends PipeNetworkNode {
                         } else {
                             ItemConnection.this.extractPriority = priority;
                         }
+                        invalidateTransferCaches();
                         helper.callMarkDirty();
                     }
 
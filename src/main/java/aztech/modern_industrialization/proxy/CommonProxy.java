@@ -101,6 +101,12 @@ public class CommonProxy {
         return false;
     }
 
+    /**
+     * Schedule a rebuild of the chunk section mesh, only on the client.
+     */
+    public void markSectionDirty(int sectionX, int sectionY, int sectionZ) {
+    }
+
     // In case there is ever a client-side specific version of this...
     public List<Component> getFluidTooltip(FluidVariant variant) {
         List<Component> list = new ArrayList<>();
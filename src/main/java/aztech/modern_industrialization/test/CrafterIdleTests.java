@@ -0,0 +1,182 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Azercoco & Technici4n
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package aztech.modern_industrialization.test;
+
+import aztech.modern_industrialization.inventory.ConfigurableItemStack;
+import aztech.modern_industrialization.inventory.SlotPositions;
+import aztech.modern_industrialization.machines.components.CrafterComponent;
+import aztech.modern_industrialization.machines.components.MachineInventoryComponent;
+import aztech.modern_industrialization.machines.init.MIMachineRecipeTypes;
+import aztech.modern_industrialization.machines.recipe.MachineRecipe;
+import aztech.modern_industrialization.machines.recipe.MachineRecipeType;
+import aztech.modern_industrialization.test.framework.MIGameTest;
+import aztech.modern_industrialization.test.framework.MIGameTestHelper;
+import aztech.modern_industrialization.thirdparty.fabrictransfer.api.item.ItemVariant;
+import aztech.modern_industrialization.util.Simulation;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.item.Items;
+import net.minecraft.world.item.crafting.RecipeHolder;
+import org.jetbrains.annotations.Nullable;
+
+public class CrafterIdleTests {
+    private static final int SLOTS = 2;
+
+    /**
+     * Crafter with unlimited energy, that counts how many times it searched for a recipe.
+     */
+    private static class TestCrafter implements CrafterComponent.Behavior {
+        final MIGameTestHelper helper;
+        final MachineInventoryComponent inventory;
+        final CrafterComponent crafter;
+        int searches = 0;
+
+        TestCrafter(MIGameTestHelper helper) {
+            this.helper = helper;
+            List<ConfigurableItemStack> inputs = new ArrayList<>();
+            List<ConfigurableItemStack> outputs = new ArrayList<>();
+            for (int i = 0; i < SLOTS; ++i) {
+                inputs.add(ConfigurableItemStack.standardInputSlot());
+                outputs.add(ConfigurableItemStack.standardOutputSlot());
+            }
+            var positions = new SlotPositions.Builder().addSlots(0, 0, 2 * SLOTS, 1).build();
+            this.inventory = new MachineInventoryComponent(inputs, outputs, List.of(), List.of(), positions, SlotPositions.empty());
+            // The machine is only used by recipe conditions
+            this.crafter = new CrafterComponent(null, inventory, this);
+        }
+
+        /**
+         * Tick the crafter and return how many times it searched for a recipe.
+         */
+        int tick() {
+            int before = searches;
+            crafter.tickRecipe();
+            return searches - before;
+        }
+
+        @Override
+        public long consumeEu(long max, Simulation simulation) {
+            return max;
+        }
+
+        @Override
+        public MachineRecipeType recipeType() {
+            // Only called to look up the candidate recipes
+            searches++;
+            return MIMachineRecipeTypes.MACERATOR;
+        }
+
+        @Override
+        public long getBaseRecipeEu() {
+            return 2;
+        }
+
+        @Override
+        public long getMaxRecipeEu() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public ServerLevel getCrafterWorld() {
+            return helper.getLevel();
+        }
+
+        @Override
+        public @Nullable UUID getOwnerUuid() {
+            return null;
+        }
+    }
+
+    private static RecipeHolder<MachineRecipe> findSimpleRecipe(MIGameTestHelper helper) {
+        for (var recipe : MIMachineRecipeTypes.MACERATOR.getRecipesWithCache(helper.getLevel())) {
+            var value = recipe.value();
+            if (value.itemInputs.size() == 1 && value.itemInputs.get(0).amount() == 1 && value.itemInputs.get(0).probability() == 1
+                    && !value.itemInputs.get(0).getInputItems().isEmpty() && value.itemOutputs.size() == 1
+                    && value.itemOutputs.get(0).probability() == 1 && value.conditions.isEmpty()) {
+                return recipe;
+            }
+        }
+        throw new IllegalStateException("No simple macerator recipe");
+    }
+
+    /**
+     * A crafter without matching inputs must not search again until its inputs change.
+     */
+    @MIGameTest
+    public void testIdleUntilInputsChange(MIGameTestHelper helper) {
+        var recipe = findSimpleRecipe(helper).value();
+        var crafter = new TestCrafter(helper);
+        var input = crafter.inventory.getItemInputs().get(0);
+
+        if (crafter.tick() == 0) {
+            helper.fail("Crafter did not search recipes on its first tick");
+        }
+        if (crafter.tick() != 0) {
+            helper.fail("Crafter without inputs searched recipes again");
+        }
+        crafter.inventory.getItemOutputs().get(0).setKey(ItemVariant.of(Items.COBBLESTONE));
+        crafter.inventory.getItemOutputs().get(0).setAmount(1);
+        if (crafter.tick() != 0) {
+            helper.fail("Crafter without inputs searched recipes after an output change");
+        }
+
+        input.setKey(ItemVariant.of(recipe.itemInputs.get(0).getInputItems().get(0)));
+        input.setAmount(1);
+        if (crafter.tick() == 0 || !crafter.crafter.hasActiveRecipe()) {
+            helper.fail("Crafter did not start a recipe after its inputs changed");
+        }
+        helper.succeed();
+    }
+
+    /**
+     * A crafter with full outputs must search again once output space is freed.
+     */
+    @MIGameTest
+    public void testIdleUntilOutputSpace(MIGameTestHelper helper) {
+        var recipe = findSimpleRecipe(helper).value();
+        var crafter = new TestCrafter(helper);
+        var input = crafter.inventory.getItemInputs().get(0);
+        input.setKey(ItemVariant.of(recipe.itemInputs.get(0).getInputItems().get(0)));
+        input.setAmount(1);
+        for (var output : crafter.inventory.getItemOutputs()) {
+            output.setKey(ItemVariant.of(Items.BEDROCK));
+            output.setAmount(64);
+        }
+
+        if (crafter.tick() == 0 || crafter.crafter.hasActiveRecipe()) {
+            helper.fail("Crafter with full outputs did not fail to start its recipe");
+        }
+        if (crafter.tick() != 0) {
+            helper.fail("Crafter with full outputs searched recipes again");
+        }
+
+        crafter.inventory.getItemOutputs().get(0).setAmount(0);
+        if (crafter.tick() == 0 || !crafter.crafter.hasActiveRecipe()) {
+            helper.fail("Crafter did not start a recipe after output space was freed");
+        }
+        helper.succeed();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Azercoco & Technici4n
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package aztech.modern_industrialization.test;
+
+import aztech.modern_industrialization.pipes.electricity.EnergyGridSolver;
+import aztech.modern_industrialization.test.framework.MIGameTest;
+import aztech.modern_industrialization.test.framework.MIGameTestHelper;
+import java.util.ArrayList;
+import java.util.List;
+
+public class EnergyGridTests {
+    private static final int LAYERS = 10, WIDTH = 10;
+    private static final long THROUGHPUT = 100;
+
+    /**
+     * Synthetic grid of 100 networks: 10 layers of 10 networks, each network linked to two networks of the next layer.
+     * The first layer supplies energy and the last layer demands it.
+     */
+    private static EnergyGridSolver buildGrid(long bottleneckThroughput, List<long[]> links) {
+        var solver = new EnergyGridSolver();
+        for (int layer = 0; layer < LAYERS; ++layer) {
+            for (int i = 0; i < WIDTH; ++i) {
+                long throughput = layer == LAYERS / 2 ? bottleneckThroughput : THROUGHPUT;
+                solver.addNetwork(throughput, layer == 0 ? THROUGHPUT : 0, layer == LAYERS - 1 ? THROUGHPUT : 0);
+            }
+        }
+        for (int layer = 0; layer + 1 < LAYERS; ++layer) {
+            for (int i = 0; i < WIDTH; ++i) {
+                int from = layer * WIDTH + i;
+                for (int to : new int[] { (layer + 1) * WIDTH + i, (layer + 1) * WIDTH + (i + 1) % WIDTH }) {
+                    solver.addLink(from, to, THROUGHPUT);
+                    links.add(new long[] { from, to, THROUGHPUT });
+                }
+            }
+        }
+        return solver;
+    }
+
+    private static void checkGrid(MIGameTestHelper helper, long bottleneckThroughput, long expectedFlow) {
+        List<long[]> links = new ArrayList<>();
+        var solver = buildGrid(bottleneckThroughput, links);
+        long flow = solver.solve();
+        if (flow != expectedFlow) {
+            helper.fail("Expected a flow of " + expectedFlow + ", got " + flow);
+        }
+
+        // Check capacities and conservation of energy in every network
+        long[] inflow = new long[solver.getNetworkCount()];
+        long[] outflow = new long[solver.getNetworkCount()];
+        for (int i = 0; i < links.size(); ++i) {
+            long linkFlow = solver.getLinkFlow(i);
+            if (linkFlow < 0 || linkFlow > links.get(i)[2]) {
+                helper.fail("Invalid flow " + linkFlow + " through link " + i);
+            }
+            outflow[(int) links.get(i)[0]] += linkFlow;
+            inflow[(int) links.get(i)[1]] += linkFlow;
+        }
+        for (int i = 0; i < solver.getNetworkCount(); ++i) {
+            long in = solver.getSupplied(i) + inflow[i];
+            long out = solver.getDemanded(i) + outflow[i];
+            long throughput = i / WIDTH == LAYERS / 2 ? bottleneckThroughput : THROUGHPUT;
+            if (in != out || in > throughput) {
+                helper.fail("Network " + i + " receives " + in + " and sends " + out + " with a throughput of " + throughput);
+            }
+        }
+
+        // Solving the same grid again must give the same result
+        var otherSolver = buildGrid(bottleneckThroughput, new ArrayList<>());
+        otherSolver.solve();
+        for (int i = 0; i < links.size(); ++i) {
+            if (solver.getLinkFlow(i) != otherSolver.getLinkFlow(i)) {
+                helper.fail("Solver is not deterministic for link " + i);
+            }
+        }
+    }
+
+    @MIGameTest
+    public void testEnergyGridFullFlow(MIGameTestHelper helper) {
+        checkGrid(helper, THROUGHPUT, WIDTH * THROUGHPUT);
+        helper.succeed();
+    }
+
+    @MIGameTest
+    public void testEnergyGridBottleneck(MIGameTestHelper helper) {
+        checkGrid(helper, 30, WIDTH * 30);
+        helper.succeed();
+    }
+}
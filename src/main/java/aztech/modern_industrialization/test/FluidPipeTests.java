@@ -35,6 +35,7 @@ import aztech.modern_industrialization.thirdparty.fabrictransfer.api.transaction
 import net.minecraft.core.BlockPos;
 import net.minecraft.core.Direction;
 import net.minecraft.world.level.material.Fluids;
+import net.neoforged.neoforge.capabilities.Capabilities;
 
 public class FluidPipeTests {
     private final PipeNetworkType fluidPipe = PipeNetworkType.get(MI.id("fluid_pipe"));
@@ -127,4 +128,75 @@ public class FluidPipeTests {
                 })
                 .thenSucceed();
     }
+
+    @MIGameTest(timeoutTicks = 200)
+    public void testFluidConservedAcrossMergesAndSplits(MIGameTestHelper helper) {
+        long total = 32000;
+        var source = new BlockPos(0, 1, 0);
+        helper.emptyTank(source);
+        var tank = (TankBlockEntity) helper.getBlockEntity(source);
+        try (var tx = Transaction.openOuter()) {
+            tank.insert(FluidVariant.of(Fluids.WATER), total, tx);
+            tx.commit();
+        }
+        var sink = new BlockPos(5, 1, 0);
+        helper.emptyTank(sink);
+        var pipes = new BlockPos[4];
+        for (int i = 0; i < pipes.length; ++i) {
+            pipes[i] = new BlockPos(1 + i, 1, 0);
+            int index = i;
+            helper.pipe(pipes[i], fluidPipe, pipe -> {
+                if (index == 0) {
+                    pipe.addOutConnection(Direction.WEST);
+                } else if (index == pipes.length - 1) {
+                    pipe.addInConnection(Direction.EAST);
+                }
+            });
+        }
+
+        // Split and merge the line in the middle while fluid flows through it, checking that no fluid is lost or
+        // created in between. The link is toggled an even number of times, so the line ends up connected.
+        var sequence = helper.startSequence();
+        for (int toggle = 0; toggle < 20; ++toggle) {
+            boolean connected = toggle % 2 == 0;
+            sequence.thenExecute(() -> {
+                helper.editPipe(pipes[1], fluidPipe, pipe -> {
+                    if (connected) {
+                        pipe.removeConnection(Direction.EAST);
+                    } else {
+                        pipe.addInConnection(Direction.EAST);
+                    }
+                });
+            });
+            for (int tick = 0; tick < 5; ++tick) {
+                sequence.thenIdle(1).thenExecute(() -> {
+                    long amount = getFluidAmount(helper, source) + getFluidAmount(helper, sink);
+                    for (BlockPos pos : pipes) {
+                        amount += ((FluidNetworkNode) helper.getPipeNode(pos, fluidPipe)).getAmount();
+                    }
+                    if (amount != total) {
+                        helper.fail("Expected %d fluid in total, got %d".formatted(total, amount), pipes[1]);
+                    }
+                });
+            }
+        }
+        sequence.thenIdle(20)
+                .thenExecute(() -> {
+                    helper.assertNoFluid(source);
+                    helper.assertFluid(sink, Fluids.WATER, (int) total);
+                })
+                .thenSucceed();
+    }
+
+    private static long getFluidAmount(MIGameTestHelper helper, BlockPos pos) {
+        var fluidHandler = helper.getLevel().getCapability(Capabilities.FluidHandler.BLOCK, helper.absolutePos(pos), null);
+        if (fluidHandler == null) {
+            helper.fail("Could not find fluid handler", pos);
+        }
+        long amount = 0;
+        for (int i = 0; i < fluidHandler.getTanks(); ++i) {
+            amount += fluidHandler.getFluidInTank(i).getAmount();
+        }
+        return amount;
+    }
 }
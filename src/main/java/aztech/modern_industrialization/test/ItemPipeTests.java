@@ -0,0 +1,64 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Azercoco & Technici4n
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package aztech.modern_industrialization.test;
+
+import aztech.modern_industrialization.MI;
+import aztech.modern_industrialization.MIConfig;
+import aztech.modern_industrialization.pipes.api.PipeNetworkType;
+import aztech.modern_industrialization.test.framework.MIGameTest;
+import aztech.modern_industrialization.test.framework.MIGameTestHelper;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Direction;
+import net.minecraft.world.item.Items;
+import net.minecraft.world.level.block.Blocks;
+
+public class ItemPipeTests {
+    private final PipeNetworkType itemPipe = PipeNetworkType.get(MI.id("item_pipe"));
+
+    @MIGameTest
+    public void testBarrelToBarrelAndChest(MIGameTestHelper helper) {
+        // Barrel to barrel goes through the MI storage fast path, barrel to chest through the item handler.
+        var barrelToFill = new BlockPos(2, 1, 0);
+        var chestToFill = new BlockPos(2, 1, 2);
+        helper.barrel(new BlockPos(0, 1, 0), Items.COBBLESTONE, 64);
+        helper.barrel(new BlockPos(0, 1, 2), Items.COBBLESTONE, 64);
+        helper.barrel(barrelToFill, Items.COBBLESTONE, 0);
+        helper.setBlock(chestToFill, Blocks.CHEST);
+        for (int z = 0; z <= 2; z += 2) {
+            helper.pipe(new BlockPos(1, 1, z), itemPipe, pipe -> {
+                pipe.addInConnection(Direction.EAST);
+                pipe.addOutConnection(Direction.WEST);
+            });
+        }
+
+        // Networks transfer once every ItemNetwork.TICK_RATE ticks, at a tick that depends on the network.
+        int transfer = MIConfig.getConfig().baseItemPipeTransfer;
+        helper.succeedWhen(() -> {
+            helper.assertItems(barrelToFill, Items.COBBLESTONE, transfer);
+            helper.assertItems(new BlockPos(0, 1, 0), Items.COBBLESTONE, 64 - transfer);
+            helper.assertItems(chestToFill, Items.COBBLESTONE, transfer);
+            helper.assertItems(new BlockPos(0, 1, 2), Items.COBBLESTONE, 64 - transfer);
+        });
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Azercoco & Technici4n
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package aztech.modern_industrialization.test;
+
+import aztech.modern_industrialization.MI;
+import aztech.modern_industrialization.MIBlock;
+import aztech.modern_industrialization.MIConfig;
+import aztech.modern_industrialization.pipes.api.PipeNetworkTelemetry;
+import aztech.modern_industrialization.pipes.api.PipeNetworkType;
+import aztech.modern_industrialization.test.framework.MIGameTest;
+import aztech.modern_industrialization.test.framework.MIGameTestHelper;
+import aztech.modern_industrialization.test.framework.PipeBuilder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Direction;
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.gametest.framework.AfterBatch;
+import net.minecraft.gametest.framework.BeforeBatch;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.item.Items;
+import net.minecraft.world.level.material.Fluids;
+
+/**
+ * Scalability benchmarks of item, fluid and cable networks: long lines, grids and stars.
+ * The batch enables {@link MIConfig#collectPipeNetworkStats}, and each test lets the network
+ * run for {@link PipeNetworkTelemetry#CAPACITY} ticks, logs the measured tick time, allocations
+ * and transfer rate, and fails if the allocations exceed the budget.
+ * The tick time depends on the machine running the tests, so its budget is only enforced if the
+ * {@value #STRICT_TIMING_PROPERTY} system property is set.
+ * The budgets are generous so that the tests are not flaky, but catch cost that no longer
+ * scales linearly with the size of the network.
+ */
+public class PipeScalabilityTests {
+    private static final String BATCH = "pipeScalability";
+    private static final String STRICT_TIMING_PROPERTY = "modern_industrialization.strictPipeBenchmarks";
+    private static final int WARMUP_TICKS = 20;
+    /**
+     * Budget of the average tick time: a fixed part plus a part per ticking node.
+     */
+    private static final long BASE_NANOS = 100_000, NANOS_PER_NODE = 2_000;
+    /**
+     * Budget of the average allocations per tick: a fixed part plus a part per endpoint.
+     */
+    private static final long BASE_BYTES = 16_384, BYTES_PER_ENDPOINT = 1_024;
+    /**
+     * Longest line that fits in the test structure, see {@link #linePath}.
+     */
+    private static final int MAX_LINE_LENGTH = 83;
+    private static final int MAX_STAR_ENDPOINTS = 18;
+    private static boolean statsWereCollected;
+
+    /**
+     * A kind of network, with the blocks used to supply and consume its resource.
+     */
+    private record Kind(PipeNetworkType type, BiConsumer<MIGameTestHelper, BlockPos> source, BiConsumer<MIGameTestHelper, BlockPos> sink,
+            boolean hasIoModes) {
+        void connectSource(PipeBuilder pipe, Direction direction) {
+            if (hasIoModes) {
+                pipe.addOutConnection(direction);
+            } else {
+                pipe.addInConnection(direction);
+            }
+        }
+    }
+
+    private static final Kind ITEM = new Kind(PipeNetworkType.get(MI.id("item_pipe")),
+            (helper, pos) -> helper.barrel(pos, Items.COBBLESTONE, 4096),
+            (helper, pos) -> helper.setBlock(pos, MIBlock.TRASH_CAN.get()), true);
+    private static final Kind FLUID = new Kind(PipeNetworkType.get(MI.id("fluid_pipe")),
+            (helper, pos) -> helper.creativeTank(pos, Fluids.WATER),
+            (helper, pos) -> helper.setBlock(pos, MIBlock.TRASH_CAN.get()), true);
+    // Storage units extract on their north face, so sinks are never connected from the north.
+    private static final Kind CABLE = new Kind(PipeNetworkType.get(MI.id("copper_cable")),
+            (helper, pos) -> helper.setBlock(pos, MIBlock.CREATIVE_STORAGE_UNIT.get()),
+            (helper, pos) -> helper.setBlock(pos, BuiltInRegistries.BLOCK.get(MI.id("lv_storage_unit"))), false);
+
+    /**
+     * Serpentine path in layers y = 1, 3 and 5: rows along x at z = 0, 2, 4 and 6, joined by single pipes,
+     * so that no two pipes of the path are adjacent unless they are consecutive.
+     */
+    private static List<BlockPos> linePath(int length) {
+        List<BlockPos> path = new ArrayList<>();
+        boolean east = true;
+        for (int layer = 0; layer < 3; ++layer) {
+            int y = 1 + 2 * layer;
+            if (layer > 0) {
+                path.add(path.get(path.size() - 1).above());
+            }
+            for (int row = 0; row < 4; ++row) {
+                int z = layer % 2 == 0 ? 2 * row : 6 - 2 * row;
+                if (row > 0) {
+                    var last = path.get(path.size() - 1);
+                    path.add(new BlockPos(last.getX(), y, (last.getZ() + z) / 2));
+                }
+                for (int i = 0; i < 6; ++i) {
+                    path.add(new BlockPos(east ? 1 + i : 6 - i, y, z));
+                }
+                east = !east;
+            }
+        }
+        return path.subList(0, length);
+    }
+
+    private static void line(MIGameTestHelper helper, Kind kind, int length) {
+        var path = linePath(length);
+        var first = path.get(0);
+        var last = path.get(length - 1);
+        kind.source.accept(helper, first.west());
+        kind.sink.accept(helper, last.above());
+        for (var pos : path) {
+            helper.pipe(pos, kind.type, pipe -> {
+                if (pos.equals(first)) {
+                    kind.connectSource(pipe, Direction.WEST);
+                }
+                if (pos.equals(last)) {
+                    pipe.addInConnection(Direction.UP);
+                }
+            });
+        }
+        measure(helper, kind, first, "line of " + length);
+    }
+
+    /**
+     * Cuboid of {@code size * height * size} pipes, fed at one corner and drained at the opposite corner.
+     */
+    private static void grid(MIGameTestHelper helper, Kind kind, int size, int height) {
+        var first = new BlockPos(1, 1, 1);
+        var last = new BlockPos(size, height, size);
+        kind.source.accept(helper, first.west());
+        kind.sink.accept(helper, last.above());
+        for (int y = 1; y <= height; ++y) {
+            for (int x = 1; x <= size; ++x) {
+                for (int z = 1; z <= size; ++z) {
+                    var pos = new BlockPos(x, y, z);
+                    helper.pipe(pos, kind.type, pipe -> {
+                        if (pos.equals(first)) {
+                            kind.connectSource(pipe, Direction.WEST);
+                        }
+                        if (pos.equals(last)) {
+                            pipe.addInConnection(Direction.UP);
+                        }
+                    });
+                }
+            }
+        }
+        measure(helper, kind, first, "grid of " + size + "x" + height + "x" + size);
+    }
+
+    /**
+     * Spine of 6 pipes fed at one end, with sinks above, below and north of the spine.
+     */
+    private static void star(MIGameTestHelper helper, Kind kind, int endpoints) {
+        var first = new BlockPos(1, 2, 3);
+        Direction[] sides = { Direction.UP, Direction.DOWN, Direction.NORTH };
+        kind.source.accept(helper, first.west());
+        for (int i = 0; i < endpoints; ++i) {
+            kind.sink.accept(helper, first.east(i % 6).relative(sides[i / 6]));
+        }
+        for (int x = 0; x < 6; ++x) {
+            var pos = first.east(x);
+            int spineIndex = x;
+            helper.pipe(pos, kind.type, pipe -> {
+                if (spineIndex == 0) {
+                    kind.connectSource(pipe, Direction.WEST);
+                }
+                for (int i = spineIndex; i < endpoints; i += 6) {
+                    pipe.addInConnection(sides[i / 6]);
+                }
+            });
+        }
+        measure(helper, kind, first, "star with " + endpoints + " endpoints");
+    }
+
+    @BeforeBatch(batch = BATCH)
+    public static void enableStats(ServerLevel level) {
+        var config = MIConfig.getConfig();
+        statsWereCollected = config.collectPipeNetworkStats;
+        config.collectPipeNetworkStats = true;
+    }
+
+    /**
+     * Also runs if some tests of the batch failed or timed out.
+     */
+    @AfterBatch(batch = BATCH)
+    public static void restoreStats(ServerLevel level) {
+        MIConfig.getConfig().collectPipeNetworkStats = statsWereCollected;
+    }
+
+    private static void measure(MIGameTestHelper helper, Kind kind, BlockPos pipePos, String description) {
+        helper.startSequence()
+                .thenIdle(WARMUP_TICKS + PipeNetworkTelemetry.CAPACITY)
+                .thenExecute(() -> {
+                    var telemetry = helper.getPipeNode(pipePos, kind.type).getNetworkTelemetry();
+                    if (telemetry == null) {
+                        helper.fail("Network " + description + " has no statistics", pipePos);
+                    }
+                    int nodes = telemetry.getLastNodeCount();
+                    int endpoints = telemetry.getLastEndpointCount();
+                    long nanos = telemetry.getAverageTickNanos();
+                    long bytes = telemetry.getAverageAllocatedBytes();
+                    long moved = telemetry.getAverageMoved();
+                    MI.LOGGER.info("Pipe benchmark {} {}: {} nodes, {} endpoints, {} ns/tick (max {} ns), {} bytes/tick, {} moved/tick",
+                            kind.type.getIdentifier(), description, nodes, endpoints, nanos, telemetry.getMaxTickNanos(), bytes, moved);
+
+                    if (moved == 0) {
+                        helper.fail("Network " + description + " did not move anything", pipePos);
+                    }
+                    long maxNanos = BASE_NANOS + NANOS_PER_NODE * nodes;
+                    if (nanos > maxNanos) {
+                        String message = "Network " + description + " took " + nanos + " ns/tick, budget is " + maxNanos;
+                        if (Boolean.getBoolean(STRICT_TIMING_PROPERTY)) {
+                            helper.fail(message, pipePos);
+                        }
+                        MI.LOGGER.warn(message);
+                    }
+                    long maxBytes = BASE_BYTES + BYTES_PER_ENDPOINT * endpoints;
+                    if (PipeNetworkTelemetry.isAllocationTrackingSupported() && bytes > maxBytes) {
+                        helper.fail("Network " + description + " allocated " + bytes + " bytes/tick, budget is " + maxBytes, pipePos);
+                    }
+                })
+                .thenSucceed();
+    }
+
+    @MIGameTest(batch = BATCH, timeoutTicks = 300)
+    public void testItemLine(MIGameTestHelper helper) {
+        line(helper, ITEM, MAX_LINE_LENGTH);
+    }
+
+    @MIGameTest(batch = BATCH, timeoutTicks = 300)
+    public void testItemGrid(MIGameTestHelper helper) {
+        grid(helper, ITEM, 6, 6);
+    }
+
+    @MIGameTest(batch = BATCH, timeoutTicks = 300)
+    public void testItemStar(MIGameTestHelper helper) {
+        star(helper, ITEM, MAX_STAR_ENDPOINTS);
+    }
+
+    @MIGameTest(batch = BATCH, timeoutTicks = 300)
+    public void testFluidLine(MIGameTestHelper helper) {
+        line(helper, FLUID, MAX_LINE_LENGTH);
+    }
+
+    @MIGameTest(batch = BATCH, timeoutTicks = 300)
+    public void testFluidGrid(MIGameTestHelper helper) {
+        grid(helper, FLUID, 6, 6);
+    }
+
+    @MIGameTest(batch = BATCH, timeoutTicks = 300)
+    public void testFluidStar(MIGameTestHelper helper) {
+        star(helper, FLUID, MAX_STAR_ENDPOINTS);
+    }
+
+    @MIGameTest(batch = BATCH, timeoutTicks = 300)
+    public void testCableLine(MIGameTestHelper helper) {
+        line(helper, CABLE, MAX_LINE_LENGTH);
+    }
+
+    @MIGameTest(batch = BATCH, timeoutTicks = 300)
+    public void testCableGrid(MIGameTestHelper helper) {
+        grid(helper, CABLE, 6, 6);
+    }
+
+    @MIGameTest(batch = BATCH, timeoutTicks = 300)
+    public void testCableStar(MIGameTestHelper helper) {
+        star(helper, CABLE, MAX_STAR_ENDPOINTS);
+    }
+}
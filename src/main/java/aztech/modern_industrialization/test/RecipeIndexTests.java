@@ -0,0 +1,134 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Azercoco & Technici4n
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package aztech.modern_industrialization.test;
+
+import aztech.modern_industrialization.MI;
+import aztech.modern_industrialization.machines.init.MIMachineRecipeTypes;
+import aztech.modern_industrialization.machines.recipe.MachineRecipe;
+import aztech.modern_industrialization.test.framework.MIGameTest;
+import aztech.modern_industrialization.test.framework.MIGameTestHelper;
+import aztech.modern_industrialization.thirdparty.fabrictransfer.api.item.ItemVariant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import net.minecraft.world.item.Item;
+import net.minecraft.world.item.ItemStack;
+import net.minecraft.world.level.material.Fluid;
+
+public class RecipeIndexTests {
+    /**
+     * For every loaded machine recipe, the candidates for an inventory holding exactly its inputs must contain it once.
+     * The total lookup time is logged, to compare recipe index changes on the full recipe set.
+     */
+    @MIGameTest
+    public void testCandidateRecipesContainMatchingRecipe(MIGameTestHelper helper) {
+        long nanos = 0;
+        int lookups = 0;
+        for (var recipeType : MIMachineRecipeTypes.getRecipeTypes()) {
+            for (var recipe : recipeType.getRecipesWithCache(helper.getLevel())) {
+                Set<Item> items = new HashSet<>();
+                for (MachineRecipe.ItemInput input : recipe.value().itemInputs) {
+                    var inputItems = input.getInputItems();
+                    if (!inputItems.isEmpty()) {
+                        items.add(inputItems.get(0));
+                    }
+                }
+                Set<Fluid> fluids = new HashSet<>();
+                for (MachineRecipe.FluidInput input : recipe.value().fluidInputs) {
+                    fluids.add(input.fluid());
+                }
+
+                long start = System.nanoTime();
+                var candidates = recipeType.getCandidateRecipes(helper.getLevel(), items, fluids);
+                nanos += System.nanoTime() - start;
+                lookups++;
+
+                boolean hasEmptyInput = recipe.value().itemInputs.stream().anyMatch(input -> input.getInputItems().isEmpty());
+                int occurrences = (int) candidates.stream().filter(candidate -> candidate == recipe).count();
+                if (occurrences != (hasEmptyInput ? 0 : 1)) {
+                    helper.fail("Recipe " + recipe.id() + " appears " + occurrences + " times in its own candidates");
+                }
+                if (candidates.stream().distinct().count() != candidates.size()) {
+                    helper.fail("Duplicate candidates for recipe " + recipe.id());
+                }
+            }
+        }
+        MI.LOGGER.info("Looked up candidate recipes {} times in {} us", lookups, nanos / 1000);
+        helper.succeed();
+    }
+
+    /**
+     * The cached item sets of the recipe inputs must agree with the ingredients, for the accepted items and for random other items.
+     * The time spent in both is logged, to compare them on the full recipe set.
+     */
+    @MIGameTest
+    public void testItemInputMatchCache(MIGameTestHelper helper) {
+        List<MachineRecipe.ItemInput> inputs = new ArrayList<>();
+        Set<Item> allItems = new LinkedHashSet<>();
+        for (var recipeType : MIMachineRecipeTypes.getRecipeTypes()) {
+            for (var recipe : recipeType.getRecipesWithCache(helper.getLevel())) {
+                for (MachineRecipe.ItemInput input : recipe.value().itemInputs) {
+                    inputs.add(input);
+                    allItems.addAll(input.getInputItems());
+                }
+            }
+        }
+        List<Item> items = List.copyOf(allItems);
+        var random = new Random(0x5EED);
+
+        long cachedNanos = 0, ingredientNanos = 0;
+        int checks = 0;
+        for (MachineRecipe.ItemInput input : inputs) {
+            List<Item> candidates = new ArrayList<>(input.getInputItems());
+            for (int i = 0; i < 16 && !items.isEmpty(); ++i) {
+                candidates.add(items.get(random.nextInt(items.size())));
+            }
+            for (Item item : candidates) {
+                ItemStack stack = new ItemStack(item);
+
+                long start = System.nanoTime();
+                boolean cached = input.matches(item);
+                cachedNanos += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                boolean expected = input.ingredient().test(stack);
+                ingredientNanos += System.nanoTime() - start;
+
+                if (cached != expected) {
+                    helper.fail("Input " + input + " matches " + item + ": expected " + expected + ", got " + cached);
+                }
+                if (input.matches(ItemVariant.of(item)) != expected) {
+                    helper.fail("Input " + input + " matches variant of " + item + ": expected " + expected);
+                }
+                checks++;
+            }
+        }
+        MI.LOGGER.info("Checked {} item input matches: {} us with the cache, {} us with the ingredients", checks, cachedNanos / 1000,
+                ingredientNanos / 1000);
+        helper.succeed();
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Azercoco & Technici4n
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package aztech.modern_industrialization.test;
+
+import aztech.modern_industrialization.MI;
+import aztech.modern_industrialization.inventory.ConfigurableFluidStack;
+import aztech.modern_industrialization.inventory.ConfigurableItemStack;
+import aztech.modern_industrialization.machines.components.RecipeSimulation;
+import aztech.modern_industrialization.machines.init.MIMachineRecipeTypes;
+import aztech.modern_industrialization.machines.recipe.MachineRecipe;
+import aztech.modern_industrialization.test.framework.MIGameTest;
+import aztech.modern_industrialization.test.framework.MIGameTestHelper;
+import aztech.modern_industrialization.thirdparty.fabrictransfer.api.fluid.FluidVariant;
+import aztech.modern_industrialization.thirdparty.fabrictransfer.api.item.ItemVariant;
+import aztech.modern_industrialization.util.Simulation;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import net.minecraft.world.item.Item;
+import net.minecraft.world.item.Items;
+import net.minecraft.world.level.material.Fluid;
+import net.minecraft.world.level.material.Fluids;
+
+public class RecipeSimulationTests {
+    private static final int INVENTORIES_PER_RECIPE = 8;
+    private static final int SLOTS = 4;
+    private static final long FLUID_CAPACITY = 16000;
+
+    /**
+     * Compare the allocation-free recipe simulation with the previous simulation on copied stacks,
+     * for every loaded machine recipe and a few random inventories.
+     */
+    @MIGameTest
+    public void testSimulationMatchesCopiedStacks(MIGameTestHelper helper) {
+        var random = new Random(0x5EED);
+        var simulation = new RecipeSimulation();
+        int checks = 0;
+        for (var recipeType : MIMachineRecipeTypes.getRecipeTypes()) {
+            for (var holder : recipeType.getRecipesWithCache(helper.getLevel())) {
+                MachineRecipe recipe = holder.value();
+                for (int inventory = 0; inventory < INVENTORIES_PER_RECIPE; ++inventory) {
+                    String context = holder.id() + " (inventory " + inventory + ")";
+
+                    var itemInputs = randomItemInputs(random, recipe);
+                    var itemInputsBefore = ConfigurableItemStack.copyList(itemInputs);
+                    check(helper, context, "item inputs", takeItemInputs(recipe, ConfigurableItemStack.copyList(itemInputs)),
+                            simulation.canTakeItemInputs(itemInputs, recipe));
+                    check(helper, context, "item input stacks", itemInputsBefore, itemInputs);
+
+                    var fluidInputs = randomFluidInputs(random, recipe);
+                    var fluidInputsBefore = ConfigurableFluidStack.copyList(fluidInputs);
+                    check(helper, context, "fluid inputs", takeFluidInputs(recipe, ConfigurableFluidStack.copyList(fluidInputs)),
+                            simulation.canTakeFluidInputs(fluidInputs, recipe));
+                    check(helper, context, "fluid input stacks", fluidInputsBefore, fluidInputs);
+
+                    var itemOutputs = randomItemOutputs(random, recipe);
+                    var expectedItemOutputs = ConfigurableItemStack.copyList(itemOutputs);
+                    check(helper, context, "item outputs", putItemOutputs(recipe, expectedItemOutputs),
+                            simulation.canPutItemOutputs(itemOutputs, recipe));
+                    simulation.lockItemOutputs(itemOutputs);
+                    check(helper, context, "item output locks", expectedItemOutputs, itemOutputs);
+
+                    var fluidOutputs = randomFluidOutputs(random, recipe);
+                    var expectedFluidOutputs = ConfigurableFluidStack.copyList(fluidOutputs);
+                    int maxFluidOutputs = random.nextInt(recipe.fluidOutputs.size() + 1);
+                    check(helper, context, "fluid outputs", putFluidOutputs(recipe, expectedFluidOutputs, maxFluidOutputs),
+                            simulation.canPutFluidOutputs(fluidOutputs, recipe, maxFluidOutputs));
+                    simulation.lockFluidOutputs(fluidOutputs);
+                    check(helper, context, "fluid output locks", expectedFluidOutputs, fluidOutputs);
+
+                    checks++;
+                }
+            }
+        }
+        MI.LOGGER.info("Compared recipe simulations for {} inventories", checks);
+        helper.succeed();
+    }
+
+    private static void check(MIGameTestHelper helper, String context, String what, Object expected, Object actual) {
+        if (!expected.equals(actual)) {
+            helper.fail("Mismatch for " + what + " of " + context + ": expected " + expected + ", got " + actual);
+        }
+    }
+
+    private static <T> T pick(Random random, List<T> values, T fallback) {
+        return values.isEmpty() || random.nextInt(4) == 0 ? fallback : values.get(random.nextInt(values.size()));
+    }
+
+    private static List<ConfigurableItemStack> randomItemInputs(Random random, MachineRecipe recipe) {
+        List<Item> items = new ArrayList<>();
+        for (var input : recipe.itemInputs) {
+            items.addAll(input.getInputItems());
+        }
+        List<ConfigurableItemStack> stacks = new ArrayList<>();
+        for (int i = 0; i < SLOTS; ++i) {
+            var stack = ConfigurableItemStack.standardInputSlot();
+            if (random.nextBoolean()) {
+                var variant = ItemVariant.of(pick(random, items, Items.COBBLESTONE));
+                stack.setKey(variant);
+                stack.setAmount(1 + random.nextInt(variant.getMaxStackSize()));
+            }
+            stacks.add(stack);
+        }
+        return stacks;
+    }
+
+    private static List<ConfigurableFluidStack> randomFluidInputs(Random random, MachineRecipe recipe) {
+        List<Fluid> fluids = new ArrayList<>();
+        for (var input : recipe.fluidInputs) {
+            fluids.add(input.fluid());
+        }
+        List<ConfigurableFluidStack> stacks = new ArrayList<>();
+        for (int i = 0; i < SLOTS; ++i) {
+            var stack = ConfigurableFluidStack.standardInputSlot(FLUID_CAPACITY);
+            if (random.nextBoolean()) {
+                stack.setKey(FluidVariant.of(pick(random, fluids, Fluids.WATER)));
+                stack.setAmount(1 + random.nextInt((int) FLUID_CAPACITY));
+            }
+            stacks.add(stack);
+        }
+        return stacks;
+    }
+
+    private static List<ConfigurableItemStack> randomItemOutputs(Random random, MachineRecipe recipe) {
+        List<Item> items = new ArrayList<>();
+        for (var output : recipe.itemOutputs) {
+            items.add(output.variant().getItem());
+        }
+        List<ConfigurableItemStack> stacks = new ArrayList<>();
+        for (int i = 0; i < SLOTS; ++i) {
+            var stack = ConfigurableItemStack.standardOutputSlot();
+            for (int j = random.nextInt(3); j > 0; --j) {
+                stack.adjustCapacity(false, true);
+            }
+            Item item = pick(random, items, Items.COBBLESTONE);
+            switch (random.nextInt(4)) {
+            case 0 -> {
+                var variant = ItemVariant.of(item);
+                stack.setKey(variant);
+                stack.setAmount(1 + random.nextInt(Math.min(variant.getMaxStackSize(), stack.getAdjustedCapacity())));
+            }
+            case 1 -> stack.enableMachineLock(item);
+            case 2 -> stack.playerLock(item, Simulation.ACT);
+            default -> {
+            }
+            }
+            stacks.add(stack);
+        }
+        return stacks;
+    }
+
+    private static List<ConfigurableFluidStack> randomFluidOutputs(Random random, MachineRecipe recipe) {
+        List<Fluid> fluids = new ArrayList<>();
+        for (var output : recipe.fluidOutputs) {
+            fluids.add(output.fluid());
+        }
+        List<ConfigurableFluidStack> stacks = new ArrayList<>();
+        for (int i = 0; i < SLOTS; ++i) {
+            var stack = ConfigurableFluidStack.standardOutputSlot(FLUID_CAPACITY);
+            Fluid fluid = pick(random, fluids, Fluids.WATER);
+            switch (random.nextInt(4)) {
+            case 0 -> {
+                stack.setKey(FluidVariant.of(fluid));
+                stack.setAmount(1 + random.nextInt((int) FLUID_CAPACITY));
+            }
+            case 1 -> stack.enableMachineLock(fluid);
+            case 2 -> stack.playerLock(fluid, Simulation.ACT);
+            default -> {
+            }
+            }
+            stacks.add(stack);
+        }
+        return stacks;
+    }
+
+    // Reference implementations: the simulation that the crafter used to run on copied stacks.
+
+    private static boolean takeItemInputs(MachineRecipe recipe, List<ConfigurableItemStack> stacks) {
+        boolean ok = true;
+        for (MachineRecipe.ItemInput input : recipe.itemInputs) {
+            int remainingAmount = input.amount();
+            for (ConfigurableItemStack stack : stacks) {
+                if (stack.getAmount() > 0 && input.matches(stack.getResource().toStack())) {
+                    int taken = Math.min((int) stack.getAmount(), remainingAmount);
+                    stack.decrement(taken);
+                    remainingAmount -= taken;
+                    if (remainingAmount == 0)
+                        break;
+                }
+            }
+            if (remainingAmount > 0)
+                ok = false;
+        }
+        return ok;
+    }
+
+    private static boolean takeFluidInputs(MachineRecipe recipe, List<ConfigurableFluidStack> stacks) {
+        boolean ok = true;
+        for (MachineRecipe.FluidInput input : recipe.fluidInputs) {
+            long remainingAmount = input.amount();
+            for (ConfigurableFluidStack stack : stacks) {
+                if (stack.getResource().equals(FluidVariant.of(input.fluid()))) {
+                    long taken = Math.min(remainingAmount, stack.getAmount());
+                    stack.decrement(taken);
+                    remainingAmount -= taken;
+                    if (remainingAmount == 0)
+                        break;
+                }
+            }
+            if (remainingAmount > 0)
+                ok = false;
+        }
+        return ok;
+    }
+
+    /**
+     * Simulates on a copy of the given stacks, then applies the locks to the given stacks.
+     */
+    private static boolean putItemOutputs(MachineRecipe recipe, List<ConfigurableItemStack> baseList) {
+        List<ConfigurableItemStack> stacks = ConfigurableItemStack.copyList(baseList);
+        List<Integer> locksToToggle = new ArrayList<>();
+        List<Item> lockItems = new ArrayList<>();
+
+        boolean ok = true;
+        for (MachineRecipe.ItemOutput output : recipe.itemOutputs) {
+            if (output.probability() < 1)
+                continue;
+            int remainingAmount = output.amount();
+            for (int loopRun = 0; loopRun < 2; loopRun++) {
+                int stackId = 0;
+                for (ConfigurableItemStack stack : stacks) {
+                    stackId++;
+                    ItemVariant key = stack.getResource();
+                    if (key.equals(output.variant()) || key.isBlank()) {
+                        int remainingCapacity = (int) stack.getRemainingCapacityFor(output.variant());
+                        int ins = Math.min(remainingAmount, remainingCapacity);
+                        if (ins > 0) {
+                            if (key.isBlank()) {
+                                if ((stack.isMachineLocked() || stack.isPlayerLocked() || loopRun == 1) && stack.isValid(output.getStack())) {
+                                    stack.setAmount(ins);
+                                    stack.setKey(output.variant());
+                                } else {
+                                    ins = 0;
+                                }
+                            } else {
+                                stack.increment(ins);
+                            }
+                        }
+                        remainingAmount -= ins;
+                        if (ins > 0) {
+                            locksToToggle.add(stackId - 1);
+                            lockItems.add(output.variant().getItem());
+                        }
+                        if (remainingAmount == 0)
+                            break;
+                    }
+                }
+            }
+            if (remainingAmount > 0)
+                ok = false;
+        }
+
+        for (int i = 0; i < locksToToggle.size(); i++) {
+            baseList.get(locksToToggle.get(i)).enableMachineLock(lockItems.get(i));
+        }
+        return ok;
+    }
+
+    /**
+     * Simulates on a copy of the given stacks, then applies the locks to the given stacks.
+     */
+    private static boolean putFluidOutputs(MachineRecipe recipe, List<ConfigurableFluidStack> baseList, int maxFluidOutputs) {
+        List<ConfigurableFluidStack> stacks = ConfigurableFluidStack.copyList(baseList);
+        List<Integer> locksToToggle = new ArrayList<>();
+        List<Fluid> lockFluids = new ArrayList<>();
+
+        boolean ok = true;
+        for (int i = 0; i < Math.min(recipe.fluidOutputs.size(), maxFluidOutputs); ++i) {
+            MachineRecipe.FluidOutput output = recipe.fluidOutputs.get(i);
+            if (output.probability() < 1)
+                continue;
+            outer: for (int tries = 0; tries < 2; ++tries) {
+                for (int j = 0; j < stacks.size(); j++) {
+                    ConfigurableFluidStack stack = stacks.get(j);
+                    FluidVariant outputKey = FluidVariant.of(output.fluid());
+                    if (stack.isResourceAllowedByLock(outputKey)
+                            && ((tries == 1 && stack.isResourceBlank()) || stack.getResource().equals(outputKey))) {
+                        long inserted = Math.min(output.amount(), stack.getRemainingSpace());
+                        if (inserted > 0) {
+                            stack.setKey(outputKey);
+                            stack.increment(inserted);
+                            locksToToggle.add(j);
+                            lockFluids.add(output.fluid());
+                        }
+                        if (inserted < output.amount()) {
+                            ok = false;
+                        }
+                        break outer;
+                    }
+                }
+                if (tries == 1) {
+                    ok = false;
+                }
+            }
+        }
+
+        for (int i = 0; i < locksToToggle.size(); i++) {
+            baseList.get(locksToToggle.get(i)).enableMachineLock(lockFluids.get(i));
+        }
+        return ok;
+    }
+}
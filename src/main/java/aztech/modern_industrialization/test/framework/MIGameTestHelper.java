@@ -24,6 +24,7 @@
 package aztech.modern_industrialization.test.framework;
 
 import aztech.modern_industrialization.MIBlock;
+import aztech.modern_industrialization.blocks.storage.barrel.BarrelBlockEntity;
 import aztech.modern_industrialization.blocks.storage.tank.creativetank.CreativeTankBlockEntity;
 import aztech.modern_industrialization.materials.MIMaterials;
 import aztech.modern_industrialization.materials.Material;
@@ -33,11 +34,14 @@ import aztech.modern_industrialization.pipes.api.PipeNetworkNode;
 import aztech.modern_industrialization.pipes.api.PipeNetworkType;
 import aztech.modern_industrialization.pipes.impl.PipeBlockEntity;
 import aztech.modern_industrialization.thirdparty.fabrictransfer.api.fluid.FluidVariant;
+import aztech.modern_industrialization.thirdparty.fabrictransfer.api.item.ItemVariant;
+import aztech.modern_industrialization.thirdparty.fabrictransfer.api.transaction.Transaction;
 import java.util.function.Consumer;
 import net.minecraft.core.BlockPos;
 import net.minecraft.core.registries.BuiltInRegistries;
 import net.minecraft.gametest.framework.GameTestHelper;
 import net.minecraft.gametest.framework.GameTestInfo;
+import net.minecraft.world.item.Item;
 import net.minecraft.world.level.block.Blocks;
 import net.minecraft.world.level.material.Fluid;
 import net.neoforged.neoforge.capabilities.Capabilities;
@@ -61,6 +65,15 @@ public class MIGameTestHelper extends GameTestHelper {
         setBlock(pos, material.getPart(MIParts.TANK).asBlock());
     }
 
+    public void barrel(BlockPos pos, Item item, int count) {
+        setBlock(pos, MIMaterials.IRON.getPart(MIParts.BARREL).asBlock());
+        var barrel = (BarrelBlockEntity) getBlockEntity(pos);
+        try (var tx = Transaction.openOuter()) {
+            barrel.insert(ItemVariant.of(item), count, tx);
+            tx.commit();
+        }
+    }
+
     public void assertAir(BlockPos pos) {
         assertBlockPresent(Blocks.AIR, pos);
     }
@@ -76,7 +89,15 @@ public class MIGameTestHelper extends GameTestHelper {
         setup.accept(new PipeBuilder(this, pipeBe, type));
     }
 
-    public PipeNetworkNode getPipeNode(BlockPos pos, PipeNetworkType type) {
+    /**
+     * Change the connections of an existing pipe, for example to split or merge networks.
+     */
+    public void editPipe(BlockPos pos, PipeNetworkType type, Consumer<? super PipeBuilder> edit) {
+        var pipeBe = (PipeBlockEntity) getBlockEntity(pos);
+        edit.accept(new PipeBuilder(this, pipeBe, type));
+    }
+
+        public PipeNetworkNode getPipeNode(BlockPos pos, PipeNetworkType type) {
         var pipeBe = (PipeBlockEntity) getBlockEntity(pos);
         for (var node : pipeBe.getNodes()) {
             if (node.getType() == type) {
@@ -110,6 +131,27 @@ public class MIGameTestHelper extends GameTestHelper {
         }
     }
 
+    public void assertItems(BlockPos pos, Item item, int count) {
+        var itemHandler = getLevel().getCapability(Capabilities.ItemHandler.BLOCK, absolutePos(pos), null);
+        if (itemHandler == null) {
+            fail("Could not find item handler", pos);
+        }
+        int found = 0;
+        for (int i = 0; i < itemHandler.getSlots(); ++i) {
+            var stack = itemHandler.getStackInSlot(i);
+            if (stack.isEmpty()) {
+                continue;
+            }
+            if (!stack.is(item)) {
+                fail("Expected item %s, got %s".formatted(BuiltInRegistries.ITEM.getKey(item), stack), pos);
+            }
+            found += stack.getCount();
+        }
+        if (found != count) {
+            fail("Expected %d of item %s, got %d".formatted(count, BuiltInRegistries.ITEM.getKey(item), found), pos);
+        }
+    }
+
     public void assertNoFluid(BlockPos pos) {
         var fluidHandler = getLevel().getCapability(Capabilities.FluidHandler.BLOCK, absolutePos(pos), null);
         if (fluidHandler == null) {
@@ -24,22 +24,46 @@
 package aztech.modern_industrialization.test.framework;
 
 import aztech.modern_industrialization.MI;
+import aztech.modern_industrialization.test.CrafterIdleTests;
+import aztech.modern_industrialization.test.EnergyGridTests;
 import aztech.modern_industrialization.test.FluidPipeTests;
+import aztech.modern_industrialization.test.ItemPipeTests;
+import aztech.modern_industrialization.test.PipeScalabilityTests;
+import aztech.modern_industrialization.test.RecipeIndexTests;
+import aztech.modern_industrialization.test.RecipeSimulationTests;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 import net.minecraft.gametest.framework.GameTestGenerator;
 import net.minecraft.gametest.framework.StructureUtils;
 import net.minecraft.gametest.framework.TestFunction;
+import net.neoforged.neoforge.event.RegisterGameTestsEvent;
 
 public final class MIGameTests {
     private MIGameTests() {
     }
 
     private static final List<Class<?>> TEST_CLASSES = List.of(
-            FluidPipeTests.class);
+            CrafterIdleTests.class,
+            EnergyGridTests.class,
+            FluidPipeTests.class,
+            ItemPipeTests.class,
+            PipeScalabilityTests.class,
+            RecipeIndexTests.class,
+            RecipeSimulationTests.class);
 
-    @GameTestGenerator
+    /**
+     * Register the tests, and the {@link net.minecraft.gametest.framework.BeforeBatch} and
+     * {@link net.minecraft.gametest.framework.AfterBatch} hooks of the test classes.
+     */
+    public static void register(RegisterGameTestsEvent event) {
+        event.register(MIGameTests.class);
+        for (var testClass : TEST_CLASSES) {
+            event.register(testClass);
+        }
+    }
+
+        @GameTestGenerator
     public static List<TestFunction> generateTests() {
         var result = new ArrayList<TestFunction>();
 